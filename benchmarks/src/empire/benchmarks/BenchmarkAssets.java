@@ -0,0 +1,38 @@
+package empire.benchmarks;
+
+import empire.ai.*;
+import empire.game.*;
+import io.anuke.arc.collection.Array;
+import io.anuke.arc.files.FileHandle;
+import io.anuke.arc.util.Log;
+import io.anuke.arc.util.Log.NoopLogHandler;
+
+/** Loads the real map and deck for benchmarks, and sets up reproducible games on them.
+ * The asset directory is set with the empire.assets system property by the benchmark task.*/
+class BenchmarkAssets{
+    private static Simulation simulation;
+
+    /** @return a simulation on the real map and deck, loaded once per benchmark fork. */
+    static synchronized Simulation simulation(){
+        if(simulation == null){
+            //AI logging would otherwise dominate planning benchmarks
+            Log.setLogger(new NoopLogHandler());
+
+            FileHandle assets = new FileHandle(System.getProperty("empire.assets", "../core/assets"));
+            simulation = Simulation.load(assets.child("maps/eurorails.txt"), assets.child("maps/deck.txt"));
+        }
+        return simulation;
+    }
+
+    /** Plays a seeded game between two default AIs until the start of a turn.
+     * The same seed and turn always result in the same state. */
+    static State midGame(long seed, int turn){
+        Simulation base = simulation();
+        Simulation sim = new Simulation(base.world, base.deck);
+        sim.maxTurns = turn - 1;
+
+        State state = sim.createGame(seed, Array.with(CurrentAI::new, CurrentAI::new));
+        sim.play(seed, state);
+        return state;
+    }
+}
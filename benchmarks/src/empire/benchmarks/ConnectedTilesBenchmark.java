@@ -0,0 +1,54 @@
+package empire.benchmarks;
+
+import empire.game.Player;
+import empire.game.World.Tile;
+import io.anuke.arc.collection.ObjectSet;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+
+/** Connectivity queries on a player's track network, on states taken from a seeded game at different turns.*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ConnectedTilesBenchmark{
+    @Param({"0"})
+    public long seed;
+    @Param({"10", "30", "60"})
+    public int turn;
+
+    private empire.game.State state;
+    private Player player;
+    private Tile start;
+
+    @Setup
+    public void setup(){
+        state = BenchmarkAssets.midGame(seed, turn);
+        player = state.player();
+        //the train is almost always on its own track
+        start = player.position;
+    }
+
+    @Benchmark
+    public ObjectSet<Tile> connectedTiles(){
+        return state.connectedTiles(player, start);
+    }
+
+    @Benchmark
+    public BitSet connectedTileIndices(){
+        return state.connectedTileIndices(player, start);
+    }
+
+    @Benchmark
+    public int countConnectedCities(){
+        return state.countConnectedCities(player, start);
+    }
+
+    @Benchmark
+    public boolean hasConnectedAllCities(){
+        return state.hasConnectedAllCities(player);
+    }
+}
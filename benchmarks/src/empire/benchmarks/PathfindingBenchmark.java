@@ -0,0 +1,50 @@
+package empire.benchmarks;
+
+import empire.ai.Astar;
+import empire.ai.Astar.Heuristic;
+import empire.game.DemandCard;
+import empire.game.Player;
+import empire.game.World;
+import empire.game.World.Tile;
+import io.anuke.arc.graphics.Color;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/** Single A* queries between cities on an empty map.*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class PathfindingBenchmark{
+    /** Start and end city: a short route, a route across the whole map, and two routes that need a ferry.*/
+    @Param({"paris-bruxelles", "lisboa-warszawa", "london-paris", "dublin-london"})
+    public String route;
+    @Param({"landmarks", "distance"})
+    public String heuristic;
+
+    private Astar astar;
+    private Tile from, to;
+
+    @Setup
+    public void setup(){
+        World world = BenchmarkAssets.simulation().world;
+        String[] cities = route.split("-");
+        from = world.tile(world.getCity(cities[0]));
+        to = world.tile(world.getCity(cities[1]));
+
+        empire.game.State state = new empire.game.State();
+        state.world = world;
+        Player player = new Player("benchmark", from, Color.white, new DemandCard[0]);
+        state.players.add(player);
+
+        astar = new Astar(player, state);
+        astar.heuristic = Heuristic.valueOf(heuristic);
+    }
+
+    @Benchmark
+    public float astar(){
+        return astar.astar(from, to);
+    }
+}
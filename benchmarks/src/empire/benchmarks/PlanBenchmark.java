@@ -0,0 +1,61 @@
+package empire.benchmarks;
+
+import empire.ai.CurrentAI;
+import empire.game.Player;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/** Full plan updates of the current AI, on states taken from a seeded game at different turns.*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PlanBenchmark{
+    /** Seed of the recorded game.*/
+    @Param({"0"})
+    public long seed;
+    /** Turn the state is taken at.*/
+    @Param({"10", "30", "60"})
+    public int turn;
+    @Param({"1", "4"})
+    public int planThreads;
+
+    private empire.game.State state;
+    private Player player;
+    private CurrentAI warm, cold;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        CurrentAI.planThreads = planThreads;
+        state = BenchmarkAssets.midGame(seed, turn);
+        player = state.player();
+        warm = createAI();
+    }
+
+    /** Creates a fresh AI, with no caches, for every cold update.*/
+    @Setup(Level.Invocation)
+    public void setupCold(){
+        cold = createAI();
+    }
+
+    /** Plans from scratch, like the first update after loading a game.*/
+    @Benchmark
+    public void updatePlanCold(){
+        cold.updatePlan();
+    }
+
+    /** Plans again with the path and leg caches of the previous update, like a replan after a sale.*/
+    @Benchmark
+    public void updatePlanWarm(){
+        warm.updatePlan();
+    }
+
+    private CurrentAI createAI(){
+        CurrentAI ai = new CurrentAI(player, state);
+        //discards of terrible plans must not change the recorded state
+        ai.actions = action -> {};
+        return ai;
+    }
+}
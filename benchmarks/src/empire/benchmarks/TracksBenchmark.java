@@ -0,0 +1,68 @@
+package empire.benchmarks;
+
+import empire.game.Player;
+import empire.game.Tracks;
+import empire.game.World;
+import io.anuke.arc.collection.IntArray;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/** Track storage throughput, using the combined track network of a seeded game.
+ * Every operation goes over the whole network, so results are per network and not per segment. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class TracksBenchmark{
+    @Param({"0"})
+    public long seed;
+    @Param({"60"})
+    public int turn;
+
+    private Tracks network = new Tracks(), scratch;
+    /** Segments of the network, as x, y, x2, y2 quadruples.*/
+    private int[] segments;
+
+    @Setup
+    public void setup(){
+        empire.game.State state = BenchmarkAssets.midGame(seed, turn);
+        World world = state.world;
+
+        for(Player player : state.players){
+            network.add(player.tracks);
+        }
+
+        IntArray out = new IntArray();
+        network.each((x, y, x2, y2) -> out.addAll(x, y, x2, y2));
+        segments = out.toArray();
+        scratch = new Tracks(world.width, world.height);
+    }
+
+    @Benchmark
+    public int has(){
+        int found = 0;
+        for(int i = 0; i < segments.length; i += 4){
+            //check the reverse direction too, as movement does
+            if(network.has(segments[i], segments[i + 1], segments[i + 2], segments[i + 3])) found ++;
+            if(network.has(segments[i + 2], segments[i + 3], segments[i], segments[i + 1])) found ++;
+        }
+        return found;
+    }
+
+    @Benchmark
+    public Tracks add(){
+        scratch.clear();
+        for(int i = 0; i < segments.length; i += 4){
+            scratch.add(segments[i], segments[i + 1], segments[i + 2], segments[i + 3]);
+        }
+        return scratch;
+    }
+
+    @Benchmark
+    public Tracks set(){
+        scratch.set(network);
+        return scratch;
+    }
+}
@@ -1,19 +1,26 @@
 package empire.ai;
 
-import empire.game.Actions.EndTurn;
+import empire.game.Actions.*;
 import empire.game.*;
 import io.anuke.arc.Core;
+import io.anuke.arc.function.Consumer;
 import io.anuke.arc.util.async.*;
 
 /** Handles the AI for a specific player.*/
 public abstract class AI{
     protected static final AsyncExecutor executor = new AsyncExecutor(4);
 
+    /** If true, async tasks run immediately on the calling thread. Used when simulating games without graphics.*/
+    public static boolean blocking = false;
+
     /** The player this AI controls.*/
     public final Player player;
     /** The game state.*/
     public final State state;
 
+    /** Handles the actions this AI performs. By default, actions go through the global action relay.*/
+    public Consumer<Action> actions = Action::act;
+
     private AsyncResult<Void> waiting;
 
     public AI(Player player, State state){
@@ -29,25 +36,48 @@ public abstract class AI{
         return waiting == null || waiting.isDone();
     }
 
+    /** Runs a task on another thread. Tasks must only read the game through {@link State#snapshot()},
+     * which is brought up to date here first.*/
     public void async(Runnable runnable){
         if(!waitAsync()){
             throw new IllegalArgumentException("Wait for the task to be done until trying again.");
         }
 
+        state.publishSnapshot();
+
+        if(blocking){
+            runnable.run();
+            return;
+        }
+
         waiting = executor.submit(() -> {
             try{
                 runnable.run();
             }catch(Throwable t){
-                Core.app.post(() -> {throw new RuntimeException(t);});
+                post(() -> {throw new RuntimeException(t);});
             }
         });
     }
 
+    /** Runs something on the main thread. If there is no application, such as in a simulation, it runs immediately.*/
+    protected void post(Runnable runnable){
+        if(Core.app == null){
+            runnable.run();
+        }else{
+            Core.app.post(runnable);
+        }
+    }
+
+
+    /** Performs an action as this AI's player.*/
+    protected void perform(Action action){
+        actions.accept(action);
+    }
 
     /** End the turn if necessary.*/
     void end(){
         if(state.player() == player){
-            new EndTurn().act();
+            perform(new EndTurn());
         }
     }
 }
@@ -1,45 +1,152 @@
 package empire.ai;
 
 import empire.game.*;
-import empire.game.World.Tile;
-import empire.gfx.EmpireCore;
+import empire.game.World.*;
 import io.anuke.arc.collection.*;
 import io.anuke.arc.function.Predicate;
-import io.anuke.arc.math.geom.Vector2;
+import io.anuke.arc.math.Mathf;
 
-import java.util.PriorityQueue;
+import java.util.Arrays;
 
-import static empire.gfx.EmpireCore.*;
+import static empire.gfx.EmpireCore.tilesize;
 
+/** A* pathfinder for track placement and movement costs.
+ * All search state is kept in preallocated arrays indexed by tile, which are invalidated with a generation stamp
+ * instead of being cleared, so a search does not allocate anything after the first call. */
 public class Astar{
-    private Vector2 vec = new Vector2();
 
     protected Array<Tile> tiles = new Array<>();
     protected int newTrackCost = 0;
     protected Tracks outputTracks = new Tracks(), inputTracks = new Tracks();
+    /** Tile index pairs of the output tracks, in path order.*/
+    protected IntArray outputEdges = new IntArray();
+    /** Order-independent hashes of the input and output tracks, used to identify track states in the leg cache.*/
+    protected long inputFingerprint, outputFingerprint;
     protected Player player;
-    protected IntSet usedOtherTrack = new IntSet();
-
-    public Astar(Player player){
+    /** The state of the game that paths are found in.*/
+    protected State state;
+    /** City found by the last call to {@link #nearest(Tile, Array, int)}; null if none was reachable.*/
+    protected City nearestCity;
+    /** Cache for {@link #leg(Tile, City)}. May be null.*/
+    protected LegCache cache;
+    /** Total number of searches this pathfinder has run.*/
+    public int searches;
+    /** Total number of tiles expanded by the searches of this pathfinder.*/
+    public int expanded;
+    /** Estimate used to guide searches towards their destination.*/
+    public Heuristic heuristic = Heuristic.distance;
+
+    /** Tile the current route starts from, set by {@link #begin(Tile)}; the player's position if null.*/
+    private Tile origin;
+
+    /** Current search generation. Array entries stamped with an older generation are considered empty.*/
+    private int generation;
+    /** Generation in which each tile was last reached.*/
+    private int[] stamps = {};
+    /** Generation in which each tile was last flagged as having used another player's track.*/
+    private int[] otherStamps = {};
+    /** Parent tile index of each tile reached in the current search; -1 for the start.*/
+    private int[] parents = {};
+    /** Best known cost of each tile reached in the current search.*/
+    private float[] costs = {};
+    /** Open set of tile indices, ordered by estimated total cost.*/
+    private final TileHeap open = new TileHeap();
+
+    /** Landmarks used by the current search, or null if the search isn't using them.*/
+    private Landmarks landmarks;
+
+    /** Destination used by the default end test.*/
+    private Tile target;
+    private final Predicate<Tile> targetTest = test -> test == target
+            || (target.city != null && state.world.getMajorCity(test) == target.city);
+
+    public Astar(Player player, State state){
         this.player = player;
+        this.state = state;
     }
 
     public void setPlayer(Player player){
         this.player = player;
     }
 
+    public void setState(State state){
+        this.state = state;
+    }
+
+    /** Sets the cache used for {@link #leg(Tile, City)}. May be null, in which case legs are never cached.*/
+    public void setCache(LegCache cache){
+        this.cache = cache;
+    }
+
+    public LegCache getCache(){
+        return cache;
+    }
+
     public void begin(){
+        begin(player.position);
+    }
+
+    /** Begins planning a route that starts from a tile other than the player's position,
+     * such as a possible starting city. The player isn't allowed to reverse out of this tile instead.*/
+    public void begin(Tile origin){
         inputTracks.clear();
+        inputFingerprint = 0;
+        this.origin = origin;
+
+        if(cache != null){
+            cache.validate(state, player, origin);
+        }
     }
 
     public void end(){
         inputTracks.clear();
+        inputFingerprint = 0;
+        origin = null;
     }
 
     /** Copies the output, placed tracks into the input buffer.
      * This essentialy makes the AI consider the newly placed tracks in the next calculations. */
     public void placeTracks(){
         inputTracks.add(outputTracks);
+        inputFingerprint += outputFingerprint;
+    }
+
+    /** Calculates the cost of travelling from a tile to a city, like {@link #astar(Tile, Tile)}.
+     * Results are reused from the cache when the same leg has already been calculated with the same input tracks.
+     * Only the cost, {@link #newTrackCost} and the output tracks are set; {@link #tiles} is not updated. */
+    public float leg(Tile from, City to){
+        Tile toTile = state.world.tile(to);
+        if(cache == null){
+            return astar(from, toTile);
+        }
+
+        World world = state.world;
+        int fromIndex = world.index(from);
+        int slot = cache.find(fromIndex, to.id, inputFingerprint);
+
+        if(slot != -1){
+            replay(slot);
+            return cache.cost(slot);
+        }
+
+        float cost = astar(from, toTile);
+        cache.put(fromIndex, to.id, inputFingerprint, cost, newTrackCost, outputFingerprint, outputEdges);
+        return cost;
+    }
+
+    /** Sets the track outputs from a cached leg.*/
+    private void replay(int slot){
+        World world = state.world;
+        IntArray edges = cache.edges(slot);
+        outputTracks.clear();
+        outputEdges.clear();
+        outputEdges.addAll(edges);
+        for(int i = 0; i < edges.size; i += 2){
+            Tile a = world.tile(edges.get(i)), b = world.tile(edges.get(i + 1));
+            outputTracks.add(a.x, a.y, b.x, b.y);
+        }
+        outputFingerprint = cache.outputFingerprint(slot);
+        newTrackCost = cache.trackCost(slot);
     }
 
     public float astar(Tile from, Tile to, Array<Tile> out){
@@ -49,86 +156,77 @@ public class Astar{
     }
 
     public float astar(Tile from, Tile to){
-        return astar(from, to, test -> test == to || state.world.getMajorCity(test) == to.city && to.city != null);
+        target = to;
+        return astar(from, to, targetTest);
     }
 
     public float astar(Tile from, Tile to, Predicate<Tile> endTest){
-        DistanceHeuristic dh = this::cost;
-        World world = state.world;
+        searches ++;
+        return trace(from, search(from, to, endTest, true));
+    }
 
-        outputTracks.clear();
-        usedOtherTrack.clear();
+    /** Finds the cheapest city out of several to travel to, searching outwards from the start tile only once.
+     * The path outputs are set like {@link #astar(Tile, Tile)}, and {@link #nearestCity} is set to the city found.
+     * If a cache is set, results are reused when the same targets are searched with the same input tracks.
+     * @param key identifies this set of targets in the cache, such as {@link LegCache#goodKey(int)}; must not be a city ID.
+     * @return the cost to the city found, or {@link Float#MAX_VALUE} if none can be reached. */
+    public float nearest(Tile from, Array<City> targets, int key){
+        World world = state.world;
+        int fromIndex = world.index(from);
+        int slot = cache == null ? -1 : cache.find(fromIndex, key, inputFingerprint);
 
-        IntFloatMap costs = new IntFloatMap();
-        ObjectMap<Tile, Tile> searchParent = new ObjectMap<>();
-        PriorityQueue<Tile> queue = new PriorityQueue<>(100,
-                (a, b) -> Float.compare(
-                        costs.get(world.index(a), 0f) + dh.cost(a, to),
-                        costs.get(world.index(b), 0f) + dh.cost(b, to)));
+        if(slot != -1){
+            replay(slot);
+            nearestCity = cache.target(slot) == -1 ? null : targets.find(c -> c.id == cache.target(slot));
+            return cache.cost(slot);
+        }
 
-        queue.add(from);
-        Tile end = null;
-        boolean found = false;
-        while(!queue.isEmpty()){
-            Tile parent = queue.poll();
-            float baseCost = costs.get(world.index(parent), 0f);
-            if(endTest.test(parent)){
-                found = true;
-                end = parent;
-                break;
-            }
-            world.adjacentsOf(parent, child -> {
-                if(state.isPassable(player, child) &&
-                        !(world.getCity(player.position) == null &&
-                                player.position == parent && player.position.directionTo(child) != null &&
-                                player.position.directionTo(child).opposite(player.direction))){
-
-                    float newCost = dh.cost(parent, child) + baseCost;
-
-                    if(!costs.containsKey(world.index(child)) || newCost < costs.get(world.index(child), Float.POSITIVE_INFINITY)){
-                        searchParent.put(child, parent);
-                        costs.put(world.index(child), newCost);
-                        queue.add(child);
-
-                        //update chain of "used other's track" flags
-                        if(usedOtherTrack.contains(parent.index())){
-                            usedOtherTrack.add(child.index());
-                        }else{
-                            usedOtherTrack.remove(child.index());
-                        }
-
-                        //check if another player has this track, and if that is the case, mark this tile as
-                        //using someone else's track
-                        if(state.players.contains(p -> p != player && p.hasTrack(from, to))){
-                            usedOtherTrack.add(child.index());
-                        }
-                    }
-                }
-            });
+        searches ++;
+        Tile end = search(from, null, test -> {
+            City city = world.getCity(test);
+            return city != null && targets.contains(city, true);
+        }, true);
+        nearestCity = end == null ? null : world.getCity(end);
+        float cost = trace(from, end);
+
+        if(cache != null){
+            cache.put(fromIndex, key, inputFingerprint, cost, newTrackCost, outputFingerprint, outputEdges,
+                    nearestCity == null ? -1 : nearestCity.id);
         }
+        return cost;
+    }
 
+    /** Builds the path outputs by following parents back from the end tile of the last search.*/
+    private float trace(Tile from, Tile end){
+        World world = state.world;
+
+        outputTracks.clear();
+        outputEdges.clear();
+        outputFingerprint = 0;
         tiles.clear();
         newTrackCost = 0;
 
-        if(!found) return Float.MAX_VALUE;
+        if(end == null) return Float.MAX_VALUE;
         float totalCost = 0;
         Tile current = end;
         boolean movedOnOtherTrack = false;
         while(current != from){
+            Tile cfrom = world.tile(parents[world.index(current)]), cto = current;
             tiles.add(current);
-            totalCost += cost(searchParent.get(current), current);
+            totalCost += cost(cfrom, cto);
 
             //add up direct track costs
-            Tile cfrom = searchParent.get(current), cto = current;
             if(!hasTrack(cfrom, cto)){
                 newTrackCost += state.getTrackCost(cfrom, cto);
                 outputTracks.add(cfrom.x, cfrom.y, cto.x, cto.y);
-            }else if(!movedOnOtherTrack && state.players.contains(p -> p.hasTrack(cfrom, cto))){
+                outputEdges.add(world.index(cfrom), world.index(cto));
+                outputFingerprint += edgeHash(world.index(cfrom), world.index(cto));
+            }else if(!movedOnOtherTrack && hasOtherTrack(cfrom, cto, null)){
                 newTrackCost += State.otherMoveTrackCost;
                 movedOnOtherTrack = true;
             }
 
-            current = searchParent.get(current);
+            current = cfrom;
         }
 
         tiles.reverse();
@@ -136,6 +234,132 @@ public class Astar{
         return totalCost;
     }
 
+    /** Calculates the cost of travelling from a tile to every other tile, without a heuristic.
+     * Unlike {@link #astar(Tile, Tile)}, the player's current facing direction is ignored.
+     * @param out array indexed by tile index, filled with costs; unreachable tiles are set to positive infinity. */
+    public void distances(Tile from, float[] out){
+        searches ++;
+        search(from, null, null, false);
+
+        for(int i = 0; i < out.length; i++){
+            out[i] = stamps[i] == generation ? costs[i] : Float.POSITIVE_INFINITY;
+        }
+    }
+
+    /** Runs a search, leaving the results in the search arrays.
+     * @param to destination used for the heuristic; if null, no heuristic is used.
+     * @param endTest the search stops at the first tile that passes this test; if null, every reachable tile is searched.
+     * @param restrictReverse whether to stop the player from reversing out of its current position
+     * @return the tile that passed the end test, or null if none were found. */
+    private Tile search(Tile from, Tile to, Predicate<Tile> endTest, boolean restrictReverse){
+        World world = state.world;
+        int start = world.index(from);
+
+        beginSearch(world.width * world.height);
+
+        //the player may not reverse out of the tile the route starts from unless it is in a city
+        Tile origin = this.origin == null ? player.position : this.origin;
+        restrictReverse &= world.getCity(origin) == null;
+        //whether another player has track between the endpoints; marks every relaxed tile as using other track
+        boolean endpointsOnOther = to != null && hasOtherTrack(from, to, player);
+
+        landmarks = to != null && heuristic == Heuristic.landmarks ? Landmarks.of(world) : null;
+
+        stamps[start] = generation;
+        costs[start] = 0f;
+        parents[start] = -1;
+        open.add(start, to == null ? 0f : estimate(from, to), 0f);
+
+        Tile end = null;
+        while(!open.isEmpty()){
+            float baseCost = open.peekCost();
+            int index = open.poll();
+
+            //stale entry, a cheaper path to this tile has been found since it was added
+            if(baseCost > costs[index]) continue;
+
+            expanded ++;
+            Tile parent = world.tile(index);
+            if(endTest != null && endTest.test(parent)){
+                end = parent;
+                break;
+            }
+
+            //iterate the static tile graph, which skips water and includes port links
+            for(int edge = world.edgeStart(index), last = world.edgeEnd(index); edge < last; edge++){
+                int dir = world.edgeDirection(edge);
+                if(!(restrictReverse && origin == parent && dir != -1 && Direction.all[dir].opposite(player.direction))){
+                    relax(world, index, parent, world.tile(world.edgeTarget(edge)), to, baseCost, endpointsOnOther);
+                }
+            }
+        }
+
+        open.clear();
+        return end;
+    }
+
+    /** Relaxes the edge from a parent to a child, queueing the child if a cheaper path to it was found.*/
+    private void relax(World world, int parentIndex, Tile parent, Tile child, Tile to, float baseCost, boolean endpointsOnOther){
+        if(!state.isPassable(player, child)) return;
+
+        int index = world.index(child);
+        float newCost = cost(parent, child) + baseCost;
+
+        if(stamps[index] != generation || newCost < costs[index]){
+            stamps[index] = generation;
+            parents[index] = parentIndex;
+            costs[index] = newCost;
+            open.add(index, to == null ? newCost : newCost + estimate(child, to), newCost);
+
+            //update chain of "used other's track" flags
+            //check if another player has this track, and if that is the case, mark this tile as
+            //using someone else's track
+            otherStamps[index] = otherStamps[parentIndex] == generation || endpointsOnOther ? generation : 0;
+        }
+    }
+
+    /** @return a well-mixed hash of an undirected edge between two tile indices.*/
+    private static long edgeHash(int a, int b){
+        long h = ((long)Math.min(a, b) << 32) | Math.max(a, b);
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+
+    /** Starts a new search generation, growing the search arrays if needed.*/
+    private void beginSearch(int size){
+        if(stamps.length < size){
+            stamps = new int[size];
+            otherStamps = new int[size];
+            parents = new int[size];
+            costs = new float[size];
+            generation = 0;
+        }
+
+        //wrap around, every stamp has to be reset so old values can't be mistaken for new ones
+        if(generation == Integer.MAX_VALUE){
+            Arrays.fill(stamps, 0);
+            Arrays.fill(otherStamps, 0);
+            generation = 0;
+        }
+
+        generation ++;
+    }
+
+    /** Estimated cost from a tile to the destination of the current search.*/
+    private float estimate(Tile from, Tile to){
+        if(landmarks == null){
+            return cost(from, to);
+        }
+
+        int moves = landmarks.estimate(state.world.index(from), state.world.index(to));
+        //searches to a major city end at its outer tiles, which are one move closer than its center
+        if(to.city != null && to.city.size == CitySize.major){
+            moves = Math.max(moves - 1, 0);
+        }
+        return moves;
+    }
+
     /** Cost heuristic for two tiles.*/
     float cost(Tile from, Tile to){
         //note that the board is a non-euclidean space, since ports exist!
@@ -160,8 +384,8 @@ public class Astar{
         }
 
         //other players may have track here, which takes 4 ECU per turn
-        if(state.players.contains(p -> p.hasTrack(from, to))){
-            if(!usedOtherTrack.contains(state.world.index(from))){
+        if(hasOtherTrack(from, to, null)){
+            if(otherStamps[state.world.index(from)] != generation){
                 //no track between these, so it costs ECU
                 return 1f + costScale(State.otherMoveTrackCost);
             }else{
@@ -183,14 +407,101 @@ public class Astar{
                 || inputTracks.has(from.x, from.y, to.x, to.y);
     }
 
+    /** @return whether any player other than the excluded one has track between these tiles.*/
+    private boolean hasOtherTrack(Tile from, Tile to, Player excluded){
+        int owners = state.trackOwners().owners(from, to);
+        if(excluded != null){
+            int index = state.players.indexOf(excluded, true);
+            if(index != -1){
+                owners &= ~(1 << index);
+            }
+        }
+        return owners != 0;
+    }
+
     public float tileDst(Tile from, Tile to){
-        vec.set(EmpireCore.control.toWorld(from.x, from.y));
-        return Math.round(vec.dst(EmpireCore.control.toWorld(to.x, to.y)) / tilesize);
+        return Math.round(Mathf.dst(from.worldx(), from.worldy(), to.worldx(), to.worldy()) / tilesize);
     }
 
-    //interfaces
+    /** Heuristics that can guide a search.*/
+    public enum Heuristic{
+        /** Straight-line distance in tiles. May overestimate paths that cross ports.*/
+        distance,
+        /** Landmark distance bounds, which never overestimate. See {@link Landmarks}.*/
+        landmarks
+    }
+
+    /** A binary min-heap of tile indices, ordered by a float priority.
+     * Entries are never updated in place; outdated ones are skipped when polled.*/
+    static class TileHeap{
+        private int[] indices = new int[64];
+        private float[] priorities = new float[64];
+        private float[] costs = new float[64];
+        private int size;
+
+        boolean isEmpty(){
+            return size == 0;
+        }
+
+        void clear(){
+            size = 0;
+        }
+
+        /** @return the path cost of the top entry at the time it was added.*/
+        float peekCost(){
+            return costs[0];
+        }
+
+        void add(int index, float priority, float cost){
+            if(size == indices.length){
+                indices = Arrays.copyOf(indices, size * 2);
+                priorities = Arrays.copyOf(priorities, size * 2);
+                costs = Arrays.copyOf(costs, size * 2);
+            }
+
+            //sift up
+            int i = size++;
+            while(i > 0){
+                int parent = (i - 1) >>> 1;
+                if(priorities[parent] <= priority) break;
+                set(i, parent);
+                i = parent;
+            }
+            indices[i] = index;
+            priorities[i] = priority;
+            costs[i] = cost;
+        }
 
-    interface DistanceHeuristic{
-        float cost(Tile from, Tile to);
+        int poll(){
+            int result = indices[0];
+            size --;
+
+            if(size > 0){
+                int index = indices[size];
+                float priority = priorities[size], cost = costs[size];
+
+                //sift down
+                int i = 0;
+                while(true){
+                    int child = i * 2 + 1;
+                    if(child >= size) break;
+                    if(child + 1 < size && priorities[child + 1] < priorities[child]) child ++;
+                    if(priority <= priorities[child]) break;
+                    set(i, child);
+                    i = child;
+                }
+                indices[i] = index;
+                priorities[i] = priority;
+                costs[i] = cost;
+            }
+
+            return result;
+        }
+
+        private void set(int to, int from){
+            indices[to] = indices[from];
+            priorities[to] = priorities[from];
+            costs[to] = costs[from];
+        }
     }
 }
@@ -4,42 +4,122 @@ import empire.game.Actions.*;
 import empire.game.DemandCard.Demand;
 import empire.game.*;
 import empire.game.World.*;
-import io.anuke.arc.Core;
 import io.anuke.arc.collection.*;
 import io.anuke.arc.function.Consumer;
+import io.anuke.arc.function.Function;
 import io.anuke.arc.util.*;
 
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
 /** The best (and currently only) iteration of the empire builder AI.*/
 public class CurrentAI extends AI{
-    private static final String defaultStartingCity = "ruhr";
+    /** Maximum number of path costs cached by each pathfinder while planning.*/
+    private static final int legCacheSize = 4096;
+    /** Number of demand tuples a single plan search task evaluates before it stops splitting.*/
+    private static final int planSplitThreshold = 4;
+    /** Maximum number of considered plans handed to the listener in a single batch.*/
+    private static final int consideredBatchSize = 100;
+    /** Listener that ignores every event.*/
+    private static final AIListener noListener = new AIListener(){};
+    /** Amount a plan's cost is reduced by when completing it wins the game, in moves. Outweighs any profit.*/
+    private static final float winReward = 10000f;
+
+    /** Number of threads used to enumerate plans by AIs created after it is set. If this is 1, plans are enumerated on the calling thread.*/
+    public static int planThreads = Runtime.getRuntime().availableProcessors();
+    /** Heuristic used by plan pathfinding. Switching it is useful for comparing tiles expanded per search.*/
+    public static Astar.Heuristic pathHeuristic = Astar.Heuristic.distance;
+    /** Shared pools for plan enumeration, by thread count. Never shut down, as any AI may be using them.*/
+    private static final IntMap<ForkJoinPool> planPools = new IntMap<>();
+
+    /** Starting city used when not choosing a location.*/
+    public String defaultStartingCity = "ruhr";
     /** Whether to choose a location.*/
-    private static final boolean chooseLocation = true;
+    public boolean chooseLocation = true;
     /** Money after which the AI will consider upgrading their loco.*/
-    private static final int upgradeAfterMoney = 60;
+    public int upgradeAfterMoney = 60;
     /** Demand cost scale: how many units to reduce a score by, per ECU.
      * If this value is, for example, 10, this AI will move 10 extra spaces to gain 1 ECU. */
-    private static final float demandCostScale = 6;
-
+    public float demandCostScale = 6;
+    /** Number of demands each plan tries to deliver, at most one per demand card.*/
+    public int planDemands = 3;
+    /** Whether to plan in anytime mode: plans are evaluated in order of an estimated cost, and planning stops
+     * when {@link #planTimeBudget} runs out, keeping the best plan found so far.*/
+    public boolean anytime = false;
+    /** Maximum time a single plan update may take in anytime mode, in milliseconds.*/
+    public int planTimeBudget = 500;
+    /** Whether to replan incrementally after a sale. Every plan is scored again, but those that were cheapest in the
+     * previous search are scored first, so most of the others can be pruned early. The chosen plan is the same.*/
+    public boolean incremental = false;
+    /** Whether plans are dropped early once they can't beat the best plan found so far. Turning this off never
+     * changes the plan chosen, only the time taken; see {@link Simulation#checkPruning}.*/
+    public boolean prune = true;
+
+    /** Total time spent updating plans, in milliseconds.*/
+    public long planningTime;
+    /** Number of plan updates.*/
+    public int planUpdates;
+    /** Total number of plans that could have been evaluated, and the number that actually were, over all updates.
+     * These only differ in anytime mode.*/
+    public long plansConsidered, plansEvaluated;
+
+    /** Number of threads this AI enumerates plans with; {@link #planThreads} when it was created.*/
+    private final int threads = planThreads;
     /** Listener to visualizer events.*/
-    private AIListener listener = new AIListener(){};
+    private AIListener listener = noListener;
+    /** The cheapest plans considered since the listener was last given a batch.*/
+    private final PlanBatch considered = new PlanBatch(consideredBatchSize);
+    /** Whether a batch of considered plans has been posted but not yet delivered.*/
+    private final AtomicBoolean batchPosted = new AtomicBoolean();
     /** List of planned actions.*/
-    private Plan plan = new Plan(new Array<>());
-    /** Object for handling pathfinding.*/
+    private Plan plan = new Plan(new Array<>(), null);
+    /** Object for handling pathfinding while executing plans, on the live game state.*/
     private Astar astar;
-    /** Plans skipped due to branch and bound. Currently unused.*/
-    private int skipped = 0;
+    /** The snapshot of the game, and of this AI's player, that the current plan update is made against.
+     * Planning never reads the live state, which may change on the game thread at the same time.*/
+    private volatile State planState;
+    private volatile Player planPlayer;
+    /** Costs between every pair of cities with the current tracks; created on the first plan update.*/
+    private PathCache pathCache;
+    /** Planning pathfinders not in use by any search. A search borrows one and gives it back when it's done, so there
+     * are never more of them than searches this AI has run at the same time, and they go away with the AI.*/
+    private final ConcurrentLinkedQueue<Astar> planners = new ConcurrentLinkedQueue<>();
+    /** Number of A* searches, tiles expanded and cached legs used in the current plan update.*/
+    private final AtomicInteger searchCount = new AtomicInteger(), expandedCount = new AtomicInteger(), cachedLegCount = new AtomicInteger();
+    /** Plans skipped due to branch and bound in the current plan update.*/
+    private final AtomicInteger skipped = new AtomicInteger();
+    /** Plans evaluated in the current plan update.*/
+    private final AtomicInteger evaluated = new AtomicInteger();
+    /** Raw float bits of the cheapest plan cost found by any worker in the current plan update.*/
+    private final AtomicInteger bestCostBits = new AtomicInteger();
     /** Worst plan accepted.*/
     private float worstPlan;
+    /** Costs of every plan enumerated in the current plan update, in incremental mode.
+     * Plans that were pruned or impossible are kept at infinity.*/
+    private final ConcurrentHashMap<PlanKey, Float> scored = new ConcurrentHashMap<>();
+    /** Costs of every plan enumerated in the last plan update; null if there are none.*/
+    private ObjectFloatMap<PlanKey> retained;
+    /** Whether the next plan update follows a sale, and can reuse the retained costs.*/
+    private boolean replanAfterSale;
 
     public CurrentAI(Player player, State state){
         super(player, state);
-        astar = new Astar(player);
+        astar = createAstar();
+    }
+
+    /** Creates a pathfinder for this AI's player that caches plan legs.*/
+    private Astar createAstar(){
+        Astar astar = new Astar(player, state);
+        astar.heuristic = pathHeuristic;
+        astar.setCache(new LegCache(legCacheSize));
+        return astar;
     }
 
     /** This runs (almost) every frame. */
     @Override
     public void act(){
-
         //select a random start location if not chosen already
         if(!player.chosenLocation && waitAsync()){
             selectLocation();
@@ -55,7 +135,7 @@ public class CurrentAI extends AI{
         if(waitAsync()){
             if(plan.bad){
                 //discard cards and end turn
-                new DiscardCards().act();
+                perform(new DiscardCards());
                 //also clear actions to cause a recalculation next turn
                 plan.actions.clear();
             }else if(executePlan()){
@@ -73,10 +153,11 @@ public class CurrentAI extends AI{
 
     /** Asynchronously calculates a plan and returns a preview of the result. Debugging only!*/
     public void previewPlan(Consumer<String> result){
+        state.publishSnapshot();
         executor.submit(() -> {
             updatePlan();
 
-            Core.app.post(() -> {
+            post(() -> {
                 plan.actions.reverse();
                 result.accept(Strings.format("---\n{0}\n---",
                         plan.actions.toString("\n", n -> n.getClass().getSimpleName() + n.toString())));
@@ -132,13 +213,14 @@ public class CurrentAI extends AI{
                     if(state.canLoadUnload(player, player.position)){
                         SellCargo sell = new SellCargo();
                         sell.cargo = good;
-                        sell.act();
+                        perform(sell);
                         //it is done, pop it out
                         plan.actions.pop();
 
                         Log.info("Sold {0} to {1}, updating plan.", sell.cargo, atCity.name);
 
                         //wait to update the plan but don't end the turn
+                        replanAfterSale = incremental;
                         async(this::updatePlan);
                         return false;
                     }else{
@@ -178,11 +260,11 @@ public class CurrentAI extends AI{
 
                             String fdump = dump;
 
-                            new DumpCargo(){{
+                            perform(new DumpCargo(){{
                                 cargo = fdump;
-                            }}.act();
+                            }});
 
-                            load.act();
+                            perform(load);
 
                             if(player.allDemands().contains(d -> d.good.equals(good)) && !good.equals(load.cargo)){
                                 Log.info("Dumped {0}, updating plan.", fdump);
@@ -194,7 +276,7 @@ public class CurrentAI extends AI{
                             return false;
                         }
 
-                        load.act();
+                        perform(load);
 
                         plan.actions.pop();
                         moved = true;
@@ -208,13 +290,13 @@ public class CurrentAI extends AI{
                 LinkCitiesAction l = (LinkCitiesAction) action;
 
                 //a-star from the start to the end, add all the tiles
-                ObjectSet<Tile> connected = state.connectedTiles(player, state.world.tile(l.to));
+                BitSet connected = state.connectedTileIndices(player, state.world.tile(l.to));
                 //finish plan when the city gets connected
-                if(connected.contains(state.world.tile(l.from))){
+                if(connected.get(state.world.index(state.world.tile(l.from)))){
                     plan.actions.pop();
                     moved = true;
                 }else{
-                    astar.astar(state.world.tile(l.from), state.world.tile(l.to), connected::contains);
+                    astar.astar(state.world.tile(l.from), state.world.tile(l.to), t -> connected.get(state.world.index(t)));
                     finalPath.set(astar.tiles);
                     shouldMove = false;
                     startTile = state.world.tile(l.from);
@@ -239,7 +321,7 @@ public class CurrentAI extends AI{
                         }
                     });
                     Log.info("Goods: {0} Result: {1}", city.goods, load.cargo);
-                    load.act();
+                    perform(load);
                 }
             }
 
@@ -252,7 +334,7 @@ public class CurrentAI extends AI{
                         PlaceTrack place = new PlaceTrack();
                         place.from = last;
                         place.to = tile;
-                        place.act();
+                        perform(place);
                         moved = true;
                     }else{
                         //can't move or place track, maybe due to an event or maybe because it's out of money
@@ -269,7 +351,7 @@ public class CurrentAI extends AI{
                     if(state.canMove(player, tile)){
                         Move move = new Move();
                         move.to = tile;
-                        move.act();
+                        perform(move);
                         moved = true;
 
                         //moves may skip turns due to ports; if that happens, break out of the whole thing
@@ -288,9 +370,9 @@ public class CurrentAI extends AI{
 
         //upgrade if the player can do it now; only happens after a money threshold
         if(state.player() == player && player.money > upgradeAfterMoney && player.loco != Loco.superFreight){
-            new UpgradeLoco(){{
+            perform(new UpgradeLoco(){{
                 type = 0;
-            }}.act();
+            }});
         }
 
         //acted, so end the turn
@@ -298,37 +380,47 @@ public class CurrentAI extends AI{
     }
 
     /** Update the plan, find the best one. */
-    void updatePlan(){
-        Core.app.post(listener::planningBegin);
-
-        Plan bestPlan = null;
-        float bestCost = Float.POSITIVE_INFINITY; //min cost
-        int considered = 0;
+    public void updatePlan(){
+        post(listener::planningBegin);
 
         Log.info("Updating plan...");
-        skipped = 0;
+        long startTime = Time.millis();
+        beginSearch();
 
         //find the cheapest plan
-        for(Demand first : allDemands()){
-            for(Demand second : allDemands(first)){
-                for(Demand third : allDemands(first, second)){
-                    for(int[] combination : PlanCombinations.all){
-                        Plan plan = makePlan(new Demand[]{first, second, third}, combination);
-                        float cost = plan.cost(bestCost);
-                        Core.app.post(() -> listener.planConsidered(plan.copy(), cost));
-                        considered ++;
-                        if(cost < bestCost){
-                            bestPlan = plan;
-                            bestCost = cost;
-                        }
-                    }
-                }
-            }
+        Array<Demand[]> tuples = demandTuples();
+        int[][] combinations = PlanCombinations.get(planPlayer.loco.loads, planSize());
+        int planCount = tuples.size * combinations.length;
+
+        Candidate best = replanAfterSale && retained != null ?
+            withPlanner(a -> findBestPlanIncremental(a, tuples, combinations)) : anytime ?
+            findBestPlanAnytime(tuples, combinations, startTime + planTimeBudget) : threads > 1 ?
+            planPool().invoke(new PlanSearch(tuples, combinations, 0, tuples.size)) :
+            withPlanner(a -> findBestPlan(a, planPlayer.position, tuples, combinations, 0, tuples.size));
+
+        planningTime += Time.timeSinceMillis(startTime);
+        planUpdates ++;
+        plansConsidered += planCount;
+        plansEvaluated += evaluated.get();
+        replanAfterSale = false;
+
+        if(incremental){
+            retained = new ObjectFloatMap<>();
+            scored.forEach(retained::put);
+        }else{
+            retained = null;
         }
 
-        Log.info("Considered {0} plans, skipped {1}.", considered, skipped);
+        Log.info("Considered {0} plans, evaluated {1} ({2}%), skipped {3}. Took {4}ms on {5} thread(s).",
+                planCount, evaluated.get(), (int)(100f * evaluated.get() / Math.max(planCount, 1)),
+                skipped.get(), Time.timeSinceMillis(startTime), threads);
+        Log.info("Ran {0} A* searches ({1} tiles expanded per search, {2} heuristic), reused {3} cached legs.",
+                searchCount.get(), expandedCount.get() / Math.max(searchCount.get(), 1), pathHeuristic, cachedLegCount.get());
+
+        if(best != null){
+            Plan bestPlan = best.plan;
+            float bestCost = best.cost;
 
-        if(bestPlan != null){
             Log.info("---\nFinal plan: \n{0}\n---",
                     bestPlan.actions.toString("\n", n -> n.getClass().getSimpleName() + n.toString()));
 
@@ -347,76 +439,400 @@ public class CurrentAI extends AI{
             }
 
             //player can win if they place track and connect cities, try doing that
-            if(player.money > State.winMoneyAmount/2){
-                plan.actions.addAll(planLinkCities());
+            if(planPlayer.money > State.winMoneyAmount/2){
+                plan.actions.addAll(withPlanner(this::planLinkCities));
             }
 
-            Core.app.post(() -> listener.planChosen(plan.copy()));
+            post(() -> listener.planChosen(plan.copy()));
         }else{
             Log.err("No good plan found.");
         }
     }
 
+    /** Finds the best plan against the latest snapshot of the game on the calling thread, evaluating plans in order
+     * without any anytime or incremental shortcuts.
+     * @return the cheapest plan, or null if no plan is possible. */
+    Candidate findBestPlanInOrder(){
+        beginSearch();
+        Array<Demand[]> tuples = demandTuples();
+        int[][] combinations = PlanCombinations.get(planPlayer.loco.loads, planSize());
+        return withPlanner(a -> findBestPlan(a, planPlayer.position, tuples, combinations, 0, tuples.size));
+    }
+
+    /** Replans like after a sale against the latest snapshot of the game, reusing the costs from the last plan update.
+     * That update must have been made in incremental mode.
+     * @return the cheapest plan, or null if no plan is possible. */
+    Candidate findBestPlanAfterSale(){
+        beginSearch();
+        Array<Demand[]> tuples = demandTuples();
+        int[][] combinations = PlanCombinations.get(planPlayer.loco.loads, planSize());
+        return withPlanner(a -> findBestPlanIncremental(a, tuples, combinations));
+    }
+
+    /** Resets the statistics and bounds of the last search, takes the latest snapshot of the game to plan against,
+     * and brings the path cache up to date.*/
+    void beginSearch(){
+        skipped.set(0);
+        evaluated.set(0);
+        scored.clear();
+        considered.clear();
+        bestCostBits.set(Float.floatToIntBits(Float.POSITIVE_INFINITY));
+        searchCount.set(0);
+        expandedCount.set(0);
+        cachedLegCount.set(0);
+
+        StateSnapshot snapshot = state.snapshot();
+        planState = snapshot.state;
+        planPlayer = snapshot.player(player);
+
+        if(pathCache == null){
+            pathCache = new PathCache(planState, planPlayer);
+        }
+        pathCache.setState(planState, planPlayer);
+        pathCache.update(threads > 1 ? planPool() : null);
+    }
+
+    /** Runs a search with a planning pathfinder pointed at the snapshot being planned against, borrowed for as long as
+     * the search takes. Pathfinders are never shared between searches running at the same time.
+     * @return the result of the search */
+    <T> T withPlanner(Function<Astar, T> search){
+        Astar astar = planners.poll();
+        if(astar == null){
+            astar = createAstar();
+        }
+        astar.setState(planState);
+        astar.setPlayer(planPlayer);
+
+        try{
+            return search.get(astar);
+        }finally{
+            planners.add(astar);
+        }
+    }
+
+    /** Evaluates every combination of actions for a range of demand tuples.
+     * @return the cheapest plan in this range, or null if no plan is possible. Ties go to the earliest plan. */
+    Candidate findBestPlan(Astar astar, Tile start, Array<Demand[]> tuples, int[][] combinations, int from, int to){
+        Candidate best = null;
+        int searches = astar.searches, expanded = astar.expanded, hits = astar.getCache() == null ? 0 : astar.getCache().hits;
+
+        for(int i = from; i < to; i++){
+            for(int j = 0; j < combinations.length; j++){
+                Candidate candidate = evaluate(astar, start, tuples.get(i), combinations[j], i * combinations.length + j);
+                if(candidate != null && (best == null || candidate.cost < best.cost)){
+                    best = candidate;
+                    offerBestCost(candidate.cost);
+                }
+            }
+        }
+
+        countSearches(astar, searches, expanded, hits);
+        return best;
+    }
+
+    /** Evaluates plans in order of their estimated cost, until all of them are evaluated or the deadline passes.
+     * Every improvement on the best plan is published to the listener as soon as it is found.
+     * @param deadline time to stop at, in {@link Time#millis()}
+     * @return the cheapest plan evaluated, or null if no evaluated plan is possible. */
+    Candidate findBestPlanAnytime(Array<Demand[]> tuples, int[][] combinations, long deadline){
+        int[] order = estimateOrder(tuples, combinations);
+        AtomicInteger next = new AtomicInteger();
+
+        if(threads <= 1){
+            return withPlanner(a -> findBestPlanOrdered(a, tuples, combinations, order, next, deadline));
+        }
+
+        //workers take plans from the shared order one at a time, so the most promising ones are always evaluated first
+        Array<ForkJoinTask<Candidate>> tasks = new Array<>();
+        for(int i = 0; i < threads; i++){
+            tasks.add(planPool().submit(() -> withPlanner(a -> findBestPlanOrdered(a, tuples, combinations, order, next, deadline))));
+        }
+
+        Candidate best = null;
+        for(ForkJoinTask<Candidate> task : tasks){
+            best = Candidate.min(best, task.join());
+        }
+        return best;
+    }
+
+    /** Evaluates plans from a shared order until it runs out or the deadline passes.*/
+    Candidate findBestPlanOrdered(Astar astar, Array<Demand[]> tuples, int[][] combinations, int[] order, AtomicInteger next, long deadline){
+        Candidate best = null;
+        int searches = astar.searches, expanded = astar.expanded, hits = astar.getCache() == null ? 0 : astar.getCache().hits;
+
+        int index;
+        while(Time.millis() < deadline && (index = next.getAndIncrement()) < order.length){
+            int id = order[index];
+            Candidate candidate = evaluate(astar, planPlayer.position, tuples.get(id / combinations.length), combinations[id % combinations.length], index);
+            if(candidate != null && (best == null || candidate.cost < best.cost)){
+                best = candidate;
+                if(offerBestCost(candidate.cost)){
+                    Plan plan = candidate.plan.copy();
+                    post(() -> listener.planChosen(plan));
+                }
+            }
+        }
+
+        countSearches(astar, searches, expanded, hits);
+        return best;
+    }
+
+    /** Replans after a sale, reusing the costs of the plans enumerated in the last update.
+     * Those costs were found from the previous position, cargo and track, so they can't stand in for new ones, and
+     * every plan is scored again; the result is the same as a full replan. The old costs only set the order: plans
+     * that were cheapest before are scored first, so the bound is low early on and most other plans are pruned quickly.
+     * New plans, such as the ones using a demand from the new card, and plans that were pruned or impossible come last.
+     * @return the cheapest plan, or null if none is possible. Ties go to the earliest plan, like a full replan. */
+    Candidate findBestPlanIncremental(Astar astar, Array<Demand[]> tuples, int[][] combinations){
+        float[] costs = new float[tuples.size * combinations.length];
+        int kept = 0;
+        for(int i = 0; i < tuples.size; i++){
+            for(int j = 0; j < combinations.length; j++){
+                float cost = retained.get(new PlanKey(tuples.get(i), combinations[j]), Float.POSITIVE_INFINITY);
+                costs[i * combinations.length + j] = cost;
+                if(cost != Float.POSITIVE_INFINITY) kept ++;
+            }
+        }
+
+        Candidate best = null;
+        int searches = astar.searches, expanded = astar.expanded, hits = astar.getCache() == null ? 0 : astar.getCache().hits;
+
+        for(int id : sortedOrder(costs)){
+            Candidate candidate = evaluate(astar, planPlayer.position, tuples.get(id / combinations.length), combinations[id % combinations.length], id);
+            //plans aren't scored in ID order here, so ties have to be broken like a full replan would
+            if(candidate != null && Candidate.min(best, candidate) == candidate){
+                best = candidate;
+                offerBestCost(candidate.cost);
+            }
+        }
+
+        countSearches(astar, searches, expanded, hits);
+        Log.info("Incremental replan: {0}/{1} plans had a cost from the last update.", kept, costs.length);
+        return best;
+    }
+
+    /** Makes and scores a single plan, bounded by the best plan any worker has found so far.
+     * @param index position of this plan in the evaluation order, used to break ties
+     * @return the scored plan, or null if it is impossible or can't beat the best plan. */
+    Candidate evaluate(Astar astar, Tile start, Demand[] demands, int[] combination, int index){
+        Plan plan = makePlan(astar, start, demands, combination);
+        float cost = plan.cost(astar, Float.intBitsToFloat(bestCostBits.get()));
+        evaluated.incrementAndGet();
+        offerConsidered(plan, cost);
+        if(incremental){
+            scored.put(new PlanKey(demands, combination), cost);
+        }
+        return cost < Float.POSITIVE_INFINITY ? new Candidate(plan, cost, index) : null;
+    }
+
+    /** Queues a considered plan for the listener. Only the cheapest plans are kept, and at most one delivery is
+     * posted at a time, so the listener gets a single batch per frame instead of a post per plan.*/
+    void offerConsidered(Plan plan, float cost){
+        if(listener == noListener) return;
+
+        considered.offer(plan, cost);
+        if(batchPosted.compareAndSet(false, true)){
+            post(() -> {
+                batchPosted.set(false);
+                PlanBatch.Result batch = considered.drain();
+                listener.plansConsidered(batch.plans, batch.costs);
+            });
+        }
+    }
+
+    /** Adds the searches a pathfinder ran since the given counts to the statistics of this update.*/
+    void countSearches(Astar astar, int searches, int expanded, int hits){
+        searchCount.addAndGet(astar.searches - searches);
+        expandedCount.addAndGet(astar.expanded - expanded);
+        if(astar.getCache() != null){
+            cachedLegCount.addAndGet(astar.getCache().hits - hits);
+        }
+    }
+
+    /** Orders every plan by a cheap estimate of its cost, made only from the city costs in the path cache.
+     * The estimate ignores money and track planned earlier in the same plan.
+     * @return plan IDs, as tuple index * combination count + combination index, most promising first. */
+    int[] estimateOrder(Array<Demand[]> tuples, int[][] combinations){
+        ObjectMap<String, Array<City>> suppliers = new ObjectMap<>();
+        for(Demand[] tuple : tuples){
+            for(Demand demand : tuple){
+                if(!suppliers.containsKey(demand.good)){
+                    suppliers.put(demand.good, Array.with(planState.world.cities()).select(s -> s.goods.contains(demand.good)));
+                }
+            }
+        }
+
+        float[] estimates = new float[tuples.size * combinations.length];
+        for(int i = 0; i < tuples.size; i++){
+            for(int j = 0; j < combinations.length; j++){
+                estimates[i * combinations.length + j] = estimate(tuples.get(i), combinations[j], suppliers);
+            }
+        }
+        return sortedOrder(estimates);
+    }
+
+    /** @return plan IDs, lowest value first; plans with the same value stay in ID order. */
+    static int[] sortedOrder(float[] values){
+        //sort values and IDs together: the value goes in the high bits, converted to an int with the same order
+        long[] keys = new long[values.length];
+        for(int id = 0; id < values.length; id++){
+            int bits = Float.floatToIntBits(values[id]);
+            bits ^= (bits >> 31) & 0x7fffffff;
+            keys[id] = ((long)bits << 32) | id;
+        }
+        Arrays.sort(keys);
+
+        int[] order = new int[keys.length];
+        for(int i = 0; i < keys.length; i++){
+            order[i] = (int)keys[i];
+        }
+        return order;
+    }
+
+    /** Estimates the cost of a plan like {@link Plan#cost(Astar, float)}, using cached city costs instead of pathfinding.*/
+    float estimate(Demand[] demands, int[] combination, ObjectMap<String, Array<City>> suppliers){
+        City at = null;
+        float total = 0f;
+
+        for(int value : combination){
+            Demand demand = demands[Math.abs(value) - 1];
+
+            if(value < 0){
+                total += estimateLeg(at, demand.city) - demand.cost * demandCostScale;
+                at = demand.city;
+            }else if(!planPlayer.cargo.contains(demand.good)){
+                City from = at;
+                City supplier = suppliers.get(demand.good).min(city -> estimateLeg(from, city));
+                total += estimateLeg(at, supplier);
+                at = supplier;
+            }
+        }
+
+        return total;
+    }
+
+    /** @return the cached cost from a city to another city, or from the player's position if the first city is null. */
+    float estimateLeg(City from, City to){
+        return from == null ? pathCache.cost(to, planPlayer.position) : pathCache.cost(from, to);
+    }
+
+    /** Lowers the shared best plan cost used for pruning, if this cost is lower.
+     * @return whether the cost was lowered. */
+    boolean offerBestCost(float cost){
+        int bits;
+        while(cost < Float.intBitsToFloat(bits = bestCostBits.get())){
+            if(bestCostBits.compareAndSet(bits, Float.floatToIntBits(cost))){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Returns all ordered tuples of demands from different cards, in the order they should be evaluated.*/
+    Array<Demand[]> demandTuples(){
+        Array<Demand[]> out = new Array<>();
+        addDemandTuples(new Demand[planSize()], 0, out);
+        return out;
+    }
+
+    private void addDemandTuples(Demand[] tuple, int length, Array<Demand[]> out){
+        if(length == tuple.length){
+            out.add(tuple.clone());
+            return;
+        }
+
+        for(Demand demand : allDemands(Arrays.copyOf(tuple, length))){
+            tuple[length] = demand;
+            addDemandTuples(tuple, length + 1, out);
+        }
+    }
+
+    /** @return the number of demands in each plan. Only one demand of a card can be delivered, so there can't be more
+     * demands than cards. */
+    int planSize(){
+        return Math.min(planDemands, planPlayer.demandCards.length);
+    }
+
+    /** @return the shared plan enumeration pool with this AI's amount of workers.*/
+    private ForkJoinPool planPool(){
+        synchronized(planPools){
+            ForkJoinPool pool = planPools.get(threads);
+            if(pool == null){
+                planPools.put(threads, pool = new ForkJoinPool(threads));
+            }
+            return pool;
+        }
+    }
+
     /** Returns an array of valid demands, given that the passed demands have already been used.*/
     Array<Demand> allDemands(Demand... alreadyUsed){
         Array<Demand> out = new Array<>();
-        Array.with(player.demandCards).select(card -> !Structs.contains(card.demands,
+        Array.with(planPlayer.demandCards).select(card -> !Structs.contains(card.demands,
                 d -> Structs.contains(alreadyUsed, d)))
                 .each(c -> out.addAll(c.demands));
         return out;
     }
 
-    /** Makes a plan from a specific order of demands and the combination of actions specified. */
-    Plan makePlan(Demand[] demands, int[] combination){
+    /** Makes a plan starting at a tile from a specific order of demands and the combination of actions specified. */
+    Plan makePlan(Astar astar, Tile start, Demand[] demands, int[] combination){
         Array<NextAction> actions = new Array<>();
 
-        astar.begin();
-        Tile currentTile = player.position;
+        astar.begin(start);
+        Tile currentTile = start;
 
         for(int value : combination){
             boolean unload = value < 0;
             Demand demand = demands[Math.abs(value) - 1];
 
             if(unload){
-                astar.astar(currentTile, state.world.tile(demand.city));
+                astar.leg(currentTile, demand.city);
                 astar.placeTracks();
 
                 actions.add(new UnloadAction(demand.city, demand.good));
                 //update new position
-                currentTile = state.world.tile(demand.city);
+                currentTile = planState.world.tile(demand.city);
             }else{
                 //only plan to load if you don't have this good
                 Tile position = currentTile;
-                //find best city to get load from
-                City loadFrom = Array.with(state.world.cities())
-                        .select(s -> s.goods.contains(demand.good))
-                        .min(city -> astar.astar(position, state.world.tile(city)));
+                //find best city to get load from; when standing in a city, use the cached city costs,
+                //which don't account for track planned earlier in this plan
+                Array<City> suppliers = Array.with(planState.world.cities()).select(s -> s.goods.contains(demand.good));
+                City loadFrom;
+
+                if(position.city != null){
+                    loadFrom = suppliers.min(city -> pathCache.cost(position.city, city));
+                    astar.leg(position, loadFrom);
+                }else{
+                    //a single search finds the closest supplier and its path
+                    astar.nearest(position, suppliers, LegCache.goodKey(planState.world.goodID(demand.good)));
+                    //if nothing is reachable, fall back to the first supplier like a minimum over equal costs would
+                    loadFrom = astar.nearestCity == null ? suppliers.first() : astar.nearestCity;
+                }
 
                 //add the placed tracks now
-                astar.astar(position, state.world.tile(loadFrom));
                 astar.placeTracks();
 
                 actions.add(new LoadAction(loadFrom, demand.good));
                 //update new position since you have to go to this city to load from it
-                currentTile = state.world.tile(loadFrom);
+                currentTile = planState.world.tile(loadFrom);
             }
         }
 
         astar.end();
 
-        return new Plan(actions);
+        return new Plan(actions, start);
     }
 
     /** Updates the plan to link cities. Clears all old plans.*/
-    Array<NextAction> planLinkCities(){
-        Array<City> majors = Array.with(state.world.cities()).select(c -> c.size == CitySize.major);
+    Array<NextAction> planLinkCities(Astar astar){
+        Array<City> majors = Array.with(planState.world.cities()).select(c -> c.size == CitySize.major);
         //found city with maximum number of connections.
-        City maxConnected = majors.max(city -> state.countConnectedCities(player, state.world.tile(city)));
-        ObjectSet<Tile> connected = state.connectedTiles(player, state.world.tile(maxConnected));
+        City maxConnected = majors.max(city -> planState.countConnectedCities(planPlayer, planState.world.tile(city)));
+        BitSet connected = planState.connectedTileIndices(planPlayer, planState.world.tile(maxConnected));
 
         //find connected and unconnected cities
-        Array<City> connectedCities = majors.select(c -> connected.contains(state.world.tile(c)));
-        Array<City> unconnectedCities = majors.select(c -> !connected.contains(state.world.tile(c)));
+        Array<City> connectedCities = majors.select(c -> connected.get(planState.world.index(planState.world.tile(c))));
+        Array<City> unconnectedCities = majors.select(c -> !connected.get(planState.world.index(planState.world.tile(c))));
 
         //everything's already connected
         if(connectedCities.size >= State.winCityAmount){
@@ -431,7 +847,7 @@ public class CurrentAI extends AI{
             float minCost = Float.POSITIVE_INFINITY;
             City minCity = null;
             for(City other : connectedCities){
-                float dst = astar.astar(state.world.tile(city), state.world.tile(other), connected::contains);
+                float dst = astar.astar(planState.world.tile(city), planState.world.tile(other), t -> connected.get(planState.world.index(t)));
                 if(dst < minCost){
                     minCity = other;
                     minCost = dst;
@@ -464,19 +880,7 @@ public class CurrentAI extends AI{
                 player.position = state.world.tile(state.world.getCity(defaultStartingCity));
                 player.chosenLocation = true;
             }else{
-                int i = 0;
-                City best = null;
-                float bestCost = Float.POSITIVE_INFINITY;
-                for(City city : Array.with(state.world.cities()).select(c -> c.size == CitySize.major)){
-                    player.position = state.world.tile(city);
-                    Log.info("Check city {0}/8", i++);
-                    updatePlan();
-
-                    if(plan.lastCost < bestCost){
-                        best = city;
-                        bestCost = plan.lastCost;
-                    }
-                }
+                City best = chooseStart(Array.with(state.world.cities()).select(c -> c.size == CitySize.major));
                 Log.info("Chose city {0}", best.name);
                 player.position = state.world.tile(best);
                 player.chosenLocation = true;
@@ -484,38 +888,92 @@ public class CurrentAI extends AI{
         });
     }
 
+    /** Finds the city with the cheapest plan to start from. Plans are made from each city's tile directly, so the
+     * player isn't modified; with several plan threads, each city is searched on its own worker.
+     * The bound on plan costs is shared, since only the cheapest plan over all cities matters.
+     * @return the city with the cheapest plan; the first city on ties, or if no plan is possible at all. */
+    City chooseStart(Array<City> cities){
+        long startTime = Time.millis();
+        beginSearch();
+
+        Array<Demand[]> tuples = demandTuples();
+        int[][] combinations = PlanCombinations.get(planPlayer.loco.loads, planSize());
+        Candidate[] results = new Candidate[cities.size];
+
+        if(threads > 1){
+            Array<ForkJoinTask<Candidate>> tasks = new Array<>();
+            for(City city : cities){
+                Tile start = planState.world.tile(city);
+                tasks.add(planPool().submit(() -> withPlanner(a -> findBestPlan(a, start, tuples, combinations, 0, tuples.size))));
+            }
+            for(int i = 0; i < cities.size; i++){
+                results[i] = tasks.get(i).join();
+            }
+        }else{
+            for(int i = 0; i < cities.size; i++){
+                Tile start = planState.world.tile(cities.get(i));
+                results[i] = withPlanner(a -> findBestPlan(a, start, tuples, combinations, 0, tuples.size));
+            }
+        }
+
+        int best = 0;
+        for(int i = 0; i < cities.size; i++){
+            if(results[i] != null && (results[best] == null || results[i].cost < results[best].cost)){
+                best = i;
+            }
+        }
+
+        planningTime += Time.timeSinceMillis(startTime);
+        Log.info("Checked {0} starting cities in {1}ms on {2} thread(s).", cities.size, Time.timeSinceMillis(startTime), threads);
+
+        return cities.get(best);
+    }
+
     public class Plan{
         public Array<NextAction> actions;
         public float lastCost;
+        /** Tile this plan starts from. Usually the player's position when it was made.*/
+        final Tile start;
         /** Whether this plan is bad enough to warrant discarding hands. Currently unused!*/
         boolean bad;
 
-        Plan(Array<NextAction> actions){
+        Plan(Array<NextAction> actions, Tile start){
             this.actions = actions;
+            this.start = start;
         }
 
         Plan copy(){
-            return new Plan(new Array<>(actions));
+            return new Plan(new Array<>(actions), start);
         }
 
-        /** Calculates a cost for this plan of actions. Disregards city linking actions.
-         * Returns plan cost in moves.*/
+        /** Calculates a cost for this plan of actions with the AI's own pathfinder. */
         float cost(float bestSoFar){
-            //note that bestSoFar is currently not used, but may be in the future
+            return withPlanner(a -> cost(a, bestSoFar));
+        }
 
-            Tile position = player.position;
+        /** Calculates a cost for this plan of actions. Disregards city linking actions.
+         * Returns plan cost in moves.
+         * @param bestSoFar the cost of the best plan found so far. If this plan can't possibly be cheaper,
+         *                  evaluation stops early and positive infinity is returned. */
+        float cost(Astar astar, float bestSoFar){
+            Tile position = start;
             float total = 0f;
-            int money = player.money;
+            int money = planPlayer.money;
             int neededCargoUsed = 0;
             //whether the player will win if they collect 250 ECU
-            boolean linked = state.hasConnectedAllCities(player);
+            boolean linked = planState.hasConnectedAllCities(planPlayer);
 
             //total profit in ECU for this entire plan
-            float totalProfit = actions.sum(a -> a instanceof UnloadAction ?
-                    player.allDemands().find(d -> d.good.equals(((UnloadAction) a).good)
-                            && d.city == ((UnloadAction) a).city).cost : 0f) * demandCostScale;
+            int totalEarned = (int)actions.sum(a -> a instanceof UnloadAction ?
+                    planPlayer.allDemands().find(d -> d.good.equals(((UnloadAction) a).good)
+                            && d.city == ((UnloadAction) a).city).cost : 0f);
+            float totalProfit = totalEarned * demandCostScale;
+            //the most this plan's final cost can be reduced by, which is one of the two reductions applied at the end;
+            //money only goes up by what is earned, so the win reward is only possible if that reaches the win amount
+            boolean canWin = linked && money + totalEarned >= State.winMoneyAmount;
+            float maxReduction = canWin ? Math.max(totalProfit, winReward) : totalProfit;
 
-            astar.begin();
+            astar.begin(start);
 
             for(NextAction action : actions){
                 if(action instanceof LoadAction){
@@ -524,24 +982,24 @@ public class CurrentAI extends AI{
                     neededCargoUsed ++;
 
                     //player may already have this good, in which case loading is free
-                    if(!player.cargo.contains(l.good)){
-                        float added = astar.astar(position, state.world.tile(l.city));
+                    if(!planPlayer.cargo.contains(l.good)){
+                        float added = astar.leg(position, l.city);
                         total += added;
                         money -= astar.newTrackCost;
-                        position = state.world.tile(l.city);
+                        position = planState.world.tile(l.city);
 
                         astar.placeTracks();
                     }
 
                     //when the player runs out of money, bail out, this plan isn't possible
                     //also bail out if player has no cargo space to hold this new load
-                    if(money < 0 || neededCargoUsed > player.loco.loads){
+                    if(money < 0 || neededCargoUsed > planPlayer.loco.loads){
                         return Float.POSITIVE_INFINITY;
                     }
                 }else if(action instanceof UnloadAction){
                     UnloadAction u = (UnloadAction)action;
 
-                    float added = astar.astar(position, state.world.tile(u.city));
+                    float added = astar.leg(position, u.city);
                     total += added;
                     money -= astar.newTrackCost;
                     neededCargoUsed --;
@@ -554,31 +1012,106 @@ public class CurrentAI extends AI{
                     }
 
                     //get money earned
-                    int earned = player.allDemands().find(d -> d.good.equals(u.good) && d.city == u.city).cost;
-                    position = state.world.tile(u.city);
+                    int earned = planPlayer.allDemands().find(d -> d.good.equals(u.good) && d.city == u.city).cost;
+                    position = planState.world.tile(u.city);
 
                     //after checking money, add unloaded cost by finding the correct demand
                     money += earned;
                 }
 
-                //branch and bound step: total is only going to get higher from here, if it's already over the best
-                //drop out
-                //-- currently does not function correctly!
-                //if(total - totalProfit > bestSoFar){
-                    //skipped ++;
-                    //return Float.POSITIVE_INFINITY;
-                //}
+                //branch and bound step: total is only going to get higher from here, so if this plan can't beat
+                //the best one even with every reduction applied, drop out
+                //ties are kept, since an earlier plan of equal cost is preferred
+                if(prune && total - maxReduction > bestSoFar){
+                    skipped.incrementAndGet();
+                    astar.end();
+                    return Float.POSITIVE_INFINITY;
+                }
             }
 
             astar.end();
 
             //note that when the player is about to win, only total amount of moves win matters
-            lastCost = linked && money >= State.winMoneyAmount ? total - 10000f : total - totalProfit;
+            //if this changes, maxReduction has to change as well
+            lastCost = linked && money >= State.winMoneyAmount ? total - winReward : total - totalProfit;
 
             return lastCost;
         }
     }
 
+    /** A scored plan found during enumeration.*/
+    static class Candidate{
+        final Plan plan;
+        final float cost;
+        /** Position of this plan in the evaluation order.*/
+        final int index;
+
+        Candidate(Plan plan, float cost, int index){
+            this.plan = plan;
+            this.cost = cost;
+            this.index = index;
+        }
+
+        /** @return the cheaper of two candidates, or the one evaluated first if they cost the same. Either may be null.*/
+        static Candidate min(Candidate a, Candidate b){
+            if(a == null) return b;
+            if(b == null) return a;
+            return b.cost < a.cost || (b.cost == a.cost && b.index < a.index) ? b : a;
+        }
+    }
+
+    /** The demands and combination of actions a plan is made from, which identify it between plan updates.
+     * Demands are compared by identity, as they belong to the cards in the player's hand.*/
+    static class PlanKey{
+        final Demand[] demands;
+        final int[] combination;
+
+        PlanKey(Demand[] demands, int[] combination){
+            this.demands = demands;
+            this.combination = combination;
+        }
+
+        @Override
+        public boolean equals(Object o){
+            if(!(o instanceof PlanKey)) return false;
+            PlanKey key = (PlanKey)o;
+            return Arrays.equals(demands, key.demands) && Arrays.equals(combination, key.combination);
+        }
+
+        @Override
+        public int hashCode(){
+            return 31 * Arrays.hashCode(demands) + Arrays.hashCode(combination);
+        }
+    }
+
+    /** Fork-join task that finds the best plan in a range of demand tuples, starting from the player's position.
+     * Each task borrows its own pathfinder, so tasks don't share any scratch state. */
+    class PlanSearch extends RecursiveTask<Candidate>{
+        final Array<Demand[]> tuples;
+        final int[][] combinations;
+        final int from, to;
+
+        PlanSearch(Array<Demand[]> tuples, int[][] combinations, int from, int to){
+            this.tuples = tuples;
+            this.combinations = combinations;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Candidate compute(){
+            if(to - from <= planSplitThreshold){
+                return withPlanner(a -> findBestPlan(a, planPlayer.position, tuples, combinations, from, to));
+            }
+
+            int mid = (from + to) >>> 1;
+            PlanSearch left = new PlanSearch(tuples, combinations, from, mid);
+            left.fork();
+            Candidate right = new PlanSearch(tuples, combinations, mid, to).compute();
+            return Candidate.min(left.join(), right);
+        }
+    }
+
     //action classes; should be self explanatory on what they represent
 
     public class LinkCitiesAction extends NextAction{
@@ -625,6 +1158,12 @@ public class CurrentAI extends AI{
     public interface AIListener{
         default void planningBegin(){}
         default void planConsidered(Plan plan, float cost){}
+        /** Called with a batch of considered plans, cheapest first. By default, each one is passed to {@link #planConsidered(Plan, float)}.*/
+        default void plansConsidered(Plan[] plans, float[] costs){
+            for(int i = 0; i < plans.length; i++){
+                planConsidered(plans[i], costs[i]);
+            }
+        }
         default void planChosen(Plan plan){}
     }
 
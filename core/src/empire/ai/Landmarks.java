@@ -0,0 +1,96 @@
+package empire.ai;
+
+import empire.game.World;
+import empire.game.World.*;
+import io.anuke.arc.collection.IntArray;
+
+import java.util.Arrays;
+
+/** Lower bounds on path costs using landmarks and the triangle inequality (ALT).
+ * Distances are counted in moves on the static tile graph, ignoring passability. Every move costs at least 1 in
+ * {@link Astar}, whatever the track or terrain, so the difference of two landmark distances never overestimates a path.
+ * Unlike straight-line distance, this also holds across ports. */
+public class Landmarks{
+    private static final int unreachable = Integer.MAX_VALUE;
+    /** Cached landmarks for the last world they were requested for.*/
+    private static Landmarks last;
+
+    private final World world;
+    /** Tile indices of each landmark.*/
+    private final int[] landmarks;
+    /** Move counts from each landmark to every tile, by landmark and then tile index.*/
+    private final int[][] distances;
+
+    /** @return the landmarks of a world, calculating them if necessary. */
+    public static synchronized Landmarks of(World world){
+        if(last == null || last.world != world){
+            last = new Landmarks(world);
+        }
+        return last;
+    }
+
+    /** Uses the center of every major city and one end of every port as landmarks.*/
+    public Landmarks(World world){
+        this.world = world;
+
+        IntArray chosen = new IntArray();
+        for(City city : world.cities()){
+            if(city.size == CitySize.major){
+                chosen.add(world.index(world.tile(city)));
+            }
+        }
+        for(int i = 0; i < world.width * world.height; i++){
+            Tile tile = world.tile(i);
+            if(tile.port != null && tile.port.from == tile){
+                chosen.add(i);
+            }
+        }
+
+        landmarks = chosen.toArray();
+        distances = new int[landmarks.length][];
+        for(int i = 0; i < landmarks.length; i++){
+            distances[i] = moves(landmarks[i]);
+        }
+    }
+
+    /** @return the amount of landmarks used. */
+    public int size(){
+        return landmarks.length;
+    }
+
+    /** @return a lower bound on the amount of moves between two tiles. */
+    public int estimate(int from, int to){
+        int best = 0;
+        for(int[] dst : distances){
+            int a = dst[from], b = dst[to];
+            if(a != unreachable && b != unreachable){
+                best = Math.max(best, Math.abs(a - b));
+            }
+        }
+        return best;
+    }
+
+    /** Breadth-first search from a tile, counting moves.*/
+    private int[] moves(int start){
+        int[] out = new int[world.width * world.height];
+        Arrays.fill(out, unreachable);
+        int[] queue = new int[out.length];
+        int head = 0, tail = 0;
+
+        out[start] = 0;
+        queue[tail++] = start;
+
+        while(head < tail){
+            int index = queue[head++];
+            for(int edge = world.edgeStart(index), end = world.edgeEnd(index); edge < end; edge++){
+                int next = world.edgeTarget(edge);
+                if(out[next] == unreachable){
+                    out[next] = out[index] + 1;
+                    queue[tail++] = next;
+                }
+            }
+        }
+
+        return out;
+    }
+}
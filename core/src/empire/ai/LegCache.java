@@ -0,0 +1,152 @@
+package empire.ai;
+
+import empire.game.*;
+import empire.game.World.Tile;
+import io.anuke.arc.collection.IntArray;
+
+/** A bounded cache of path costs from a tile to a city.
+ * Entries are keyed by the start tile index, the destination city ID and a fingerprint of the tracks that have
+ * been planned so far; the cache is direct-mapped, so a new entry simply replaces whatever was in its slot.
+ * Everything is invalidated when the real tracks, route origin or loco of the player, or any active event, change. */
+public class LegCache{
+    /** Bit set in destination keys that stand for the nearest supplier of a good rather than a city.
+     * City IDs are never negative, so the two never clash.*/
+    private static final int goodTag = Integer.MIN_VALUE;
+
+    private final int mask;
+    private final long[] keys, fingerprints;
+    private final boolean[] used;
+    private final float[] costs;
+    private final int[] trackCosts;
+    private final long[] outputFingerprints;
+    private final int[] targets;
+    private final IntArray[] edges;
+
+    /** Hash of everything outside of the planned tracks that a cached cost depends on.*/
+    private long validKey;
+
+    /** Number of lookups that were or weren't found, respectively.*/
+    public int hits, misses;
+
+    /** @param capacity the maximum amount of entries; rounded up to a power of two. */
+    public LegCache(int capacity){
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+
+        mask = size - 1;
+        keys = new long[size];
+        fingerprints = new long[size];
+        used = new boolean[size];
+        costs = new float[size];
+        trackCosts = new int[size];
+        outputFingerprints = new long[size];
+        targets = new int[size];
+        edges = new IntArray[size];
+    }
+
+    /** Clears the cache if anything that affects path costs has changed since it was last validated.
+     * @param origin the tile that routes start from, which the player can't reverse out of unless it's a city */
+    public void validate(State state, Player player, Tile origin){
+        long key = player.tracks.version();
+        //origins in cities don't restrict anything, so legs found from any of them are the same
+        key = key * 31 + (state.world.getCity(origin) == null ? state.world.index(origin) : -1);
+        key = key * 31 + player.direction.ordinal();
+        key = key * 31 + player.loco.ordinal();
+        for(int i = 0; i < state.players.size; i++){
+            Player other = state.players.get(i);
+            key = key * 31 + other.tracks.version();
+            //active events of any player can change move costs and block tracks
+            for(EventCard card : other.eventCards){
+                key = key * 31 + card.id + 1;
+            }
+            key = key * 31 + other.eventCards.size;
+        }
+
+        if(key != validKey){
+            clear();
+            validKey = key;
+        }
+    }
+
+    /** @return the destination key of a leg to the nearest city that supplies a good.
+     * @param goodID from {@link World#goodID(String)} */
+    public static int goodKey(int goodID){
+        return goodID | goodTag;
+    }
+
+    public void clear(){
+        for(int i = 0; i < used.length; i++){
+            used[i] = false;
+        }
+    }
+
+    /** @return the slot of a cached leg, or -1 if it is not cached. */
+    public int find(int from, int to, long fingerprint){
+        long key = key(from, to);
+        int slot = slot(key, fingerprint);
+
+        if(used[slot] && keys[slot] == key && fingerprints[slot] == fingerprint){
+            hits ++;
+            return slot;
+        }
+
+        misses ++;
+        return -1;
+    }
+
+    /** Stores a leg, replacing any leg in the same slot.
+     * @param output tile index pairs of the tracks that need to be placed for this leg */
+    public void put(int from, int to, long fingerprint, float cost, int trackCost, long outputFingerprint, IntArray output){
+        put(from, to, fingerprint, cost, trackCost, outputFingerprint, output, to);
+    }
+
+    /** Stores a leg that may end at a different place than its key, such as the nearest of several cities.
+     * @param target the city ID that the leg actually ends at */
+    public void put(int from, int to, long fingerprint, float cost, int trackCost, long outputFingerprint, IntArray output, int target){
+        long key = key(from, to);
+        int slot = slot(key, fingerprint);
+
+        if(edges[slot] == null) edges[slot] = new IntArray();
+
+        used[slot] = true;
+        keys[slot] = key;
+        fingerprints[slot] = fingerprint;
+        costs[slot] = cost;
+        trackCosts[slot] = trackCost;
+        outputFingerprints[slot] = outputFingerprint;
+        targets[slot] = target;
+        edges[slot].clear();
+        edges[slot].addAll(output);
+    }
+
+    public float cost(int slot){
+        return costs[slot];
+    }
+
+    public int trackCost(int slot){
+        return trackCosts[slot];
+    }
+
+    public long outputFingerprint(int slot){
+        return outputFingerprints[slot];
+    }
+
+    /** @return the city ID that a leg ends at. */
+    public int target(int slot){
+        return targets[slot];
+    }
+
+    /** @return tile index pairs of the tracks placed by this leg. */
+    public IntArray edges(int slot){
+        return edges[slot];
+    }
+
+    private long key(int from, int to){
+        return ((long)from << 32) | (to & 0xffffffffL);
+    }
+
+    private int slot(long key, long fingerprint){
+        long h = key * 0x9E3779B97F4A7C15L + fingerprint;
+        h ^= h >>> 31;
+        return (int)h & mask;
+    }
+}
@@ -0,0 +1,93 @@
+package empire.ai;
+
+import empire.ai.CurrentAI.Plan;
+
+import java.util.Arrays;
+
+/** Collects the cheapest plans considered by the planner, so they can be handed to a listener in batches.
+ * The plans are kept in a bounded max-heap on cost, so the worst kept plan is replaced first; a plan is only
+ * copied if it is kept. Safe to use from several planning threads.*/
+public class PlanBatch{
+    private final Plan[] plans;
+    private final float[] costs;
+    private int size;
+
+    /** @param capacity the maximum amount of plans kept until the next {@link #drain()}. */
+    public PlanBatch(int capacity){
+        plans = new Plan[capacity];
+        costs = new float[capacity];
+    }
+
+    /** Adds a plan if it's among the cheapest seen since the last drain. The plan is copied when added.*/
+    public synchronized void offer(Plan plan, float cost){
+        if(size < plans.length){
+            plans[size] = plan.copy();
+            costs[size] = cost;
+            siftUp(size++);
+        }else if(cost < costs[0]){
+            plans[0] = plan.copy();
+            costs[0] = cost;
+            siftDown(0);
+        }
+    }
+
+    public synchronized void clear(){
+        Arrays.fill(plans, 0, size, null);
+        size = 0;
+    }
+
+    /** Removes every plan in this batch.
+     * @return the plans, cheapest first, with their costs at the same indices. */
+    public synchronized Result drain(){
+        Result result = new Result(size);
+        for(int i = size - 1; i >= 0; i--){
+            result.plans[i] = plans[0];
+            result.costs[i] = costs[0];
+            plans[0] = plans[--size];
+            costs[0] = costs[size];
+            plans[size] = null;
+            siftDown(0);
+        }
+        return result;
+    }
+
+    private void siftUp(int index){
+        while(index > 0){
+            int parent = (index - 1) >>> 1;
+            if(costs[parent] >= costs[index]) break;
+            swap(index, parent);
+            index = parent;
+        }
+    }
+
+    private void siftDown(int index){
+        while(true){
+            int child = index * 2 + 1;
+            if(child >= size) break;
+            if(child + 1 < size && costs[child + 1] > costs[child]) child ++;
+            if(costs[index] >= costs[child]) break;
+            swap(index, child);
+            index = child;
+        }
+    }
+
+    private void swap(int a, int b){
+        Plan plan = plans[a];
+        plans[a] = plans[b];
+        plans[b] = plan;
+        float cost = costs[a];
+        costs[a] = costs[b];
+        costs[b] = cost;
+    }
+
+    /** Plans drained from a batch, cheapest first.*/
+    public static class Result{
+        public final Plan[] plans;
+        public final float[] costs;
+
+        Result(int size){
+            plans = new Plan[size];
+            costs = new float[size];
+        }
+    }
+}
@@ -1,20 +1,56 @@
 package empire.ai;
 
+import io.anuke.arc.collection.*;
+
+/** Generates the orders in which the loads and unloads of a plan can happen.
+ * In a combination, a positive value n means loading the good of the nth demand, and -n means delivering it.
+ * Combinations are canonical: demands are always loaded in order, since the planner already tries every ordering
+ * of the demands themselves. Each table is generated once and shared. */
 public class PlanCombinations{
-    public static final int[][] all = {
-            {1, -1, 2, 3, -2, -3},
-            {1, -1, 2, 3, -3, -2},
-            {1, 2, -1, -2, 3, -3},
-            {1, 2, -2, -1, 3, -3},
-            {2, 1, -2, -1, 3, -3},
-            {1, -1, 2, -2, 3, -3}, //the only 'reasonable' combination
+    private static final IntMap<int[][]> cache = new IntMap<>();
+
+    /** @param loads the amount of cargo that can be carried at once
+     * @param demands the amount of demands in a plan
+     * @return every valid combination of loads and unloads for these demands. Must not be modified. */
+    public static synchronized int[][] get(int loads, int demands){
+        int key = loads << 16 | demands;
+        int[][] out = cache.get(key);
+        if(out == null){
+            cache.put(key, out = generate(loads, demands));
+        }
+        return out;
+    }
+
+    private static int[][] generate(int loads, int demands){
+        Array<int[]> out = new Array<>();
+        generate(new int[demands * 2], 0, new boolean[demands], 0, 0, loads, out);
+        return out.toArray(int[].class);
+    }
+
+    /** Extends a partial combination in every valid way. Unloads are tried before loads, so that combinations
+     * carrying less cargo come first and win ties.
+     * @param nextLoad the next demand to load; every demand before it has been loaded
+     * @param carried the amount of cargo carried at this point */
+    private static void generate(int[] current, int length, boolean[] unloaded, int nextLoad, int carried, int loads, Array<int[]> out){
+        if(length == current.length){
+            out.add(current.clone());
+            return;
+        }
+
+        //deliver anything that's being carried
+        for(int i = 0; i < nextLoad; i++){
+            if(!unloaded[i]){
+                unloaded[i] = true;
+                current[length] = -(i + 1);
+                generate(current, length + 1, unloaded, nextLoad, carried - 1, loads, out);
+                unloaded[i] = false;
+            }
+        }
 
-            //these require 3 cargo spaces
-            {1, 2, 3, -1, -2, -3},
-            {1, 2, 3, -1, -3, -2},
-            {1, 2, 3, -2, -1, -3},
-            {1, 2, 3, -2, -3, -1},
-            {1, 2, 3, -3, -1, -2},
-            {1, 2, 3, -3, -2, -1},
-    };
+        //load the next demand if there's space for it
+        if(nextLoad < unloaded.length && carried < loads){
+            current[length] = nextLoad + 1;
+            generate(current, length + 1, unloaded, nextLoad + 1, carried + 1, loads, out);
+        }
+    }
 }
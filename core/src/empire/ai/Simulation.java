@@ -0,0 +1,227 @@
+package empire.ai;
+
+import empire.ai.CurrentAI.Candidate;
+import empire.game.Actions.*;
+import empire.game.*;
+import empire.game.World.City;
+import empire.gfx.*;
+import empire.io.*;
+import io.anuke.arc.collection.*;
+import io.anuke.arc.files.FileHandle;
+import io.anuke.arc.function.BiFunction;
+import io.anuke.arc.graphics.Color;
+import io.anuke.arc.util.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/** Plays games between AIs without any graphics, as fast as possible.
+ * Every AI step runs synchronously on the calling thread, and actions are applied directly to the game's own state,
+ * so several games can be played at once on different threads. Global events are not fired for these actions. */
+public class Simulation{
+    /** Maximum number of AI steps in a single turn before the turn is ended for the player.*/
+    private static final int maxStepsPerTurn = 1000;
+
+    /** The world that every game is played in. Shared between games.*/
+    public final World world;
+    /** The unshuffled deck that every game starts with. Shared between games.*/
+    public final Array<Card> deck;
+    /** Number of AI players in each game, when not specified.*/
+    public int players = 2;
+    /** Number of turns after which a game is stopped without a winner.*/
+    public int maxTurns = 400;
+
+    public Simulation(World world, Array<Card> deck){
+        this.world = world;
+        this.deck = deck;
+    }
+
+    /** Loads a simulation from map and card files.*/
+    public static Simulation load(FileHandle map, FileHandle cards){
+        World world = MapIO.loadTiles(map);
+        return new Simulation(world, CardIO.loadCards(world, cards));
+    }
+
+    /** Plays a single game with the default AI for every player.
+     * @param seed seed for shuffling cards and choosing start cities; the same seed always plays the same game */
+    public Result play(long seed){
+        Array<BiFunction<Player, State, AI>> ais = new Array<>();
+        for(int i = 0; i < players; i++){
+            ais.add(EmpireCore.aiType);
+        }
+        return play(seed, ais);
+    }
+
+    /** Plays a single game.
+     * @param seed seed for shuffling cards and choosing start cities; the same seed always plays the same game
+     * @param ais creates the AI for each player, in turn order */
+    public Result play(long seed, Array<BiFunction<Player, State, AI>> ais){
+        return play(seed, createGame(seed, ais));
+    }
+
+    /** Sets up a game without playing it.
+     * @param seed seed for shuffling cards and choosing start cities
+     * @param ais creates the AI for each player, in turn order */
+    public State createGame(long seed, Array<BiFunction<Player, State, AI>> ais){
+        AI.blocking = true;
+        Random random = new Random(seed);
+
+        State state = new State();
+        state.world = world;
+        state.cards = new Array<>(deck);
+        //shuffle with this game's random, since the global one can't be shared between threads
+        for(int i = state.cards.size - 1; i > 0; i--){
+            state.cards.swap(i, random.nextInt(i + 1));
+        }
+
+        Array<City> cities = Array.with(world.cities());
+        for(int i = 0; i < ais.size; i++){
+            City start = cities.get(random.nextInt(cities.size));
+            Color color = new Color(random.nextFloat(), random.nextFloat(), random.nextFloat(), 1f);
+            Player player = new Player("AI " + (i + 1), world.tile(start), color, state.grabCards());
+            player.ai = ais.get(i).get(player, state);
+            player.ai.actions = action -> apply(state, action);
+            state.players.add(player);
+        }
+
+        return state;
+    }
+
+    /** Plays a game that was set up with {@link #createGame(long, Array)} until someone wins or the turn limit is reached.
+     * @param seed seed the game was created with; only used in the result */
+    public Result play(long seed, State state){
+        int playerCount = state.players.size;
+        IntArray[] money = new IntArray[playerCount];
+        for(int i = 0; i < money.length; i++){
+            money[i] = new IntArray();
+        }
+
+        long startTime = Time.millis();
+        int steps = 0, turn = state.turn, current = state.currentPlayer;
+
+        while(!state.hasWinner && state.turn <= maxTurns){
+            state.player().ai.act();
+
+            if(state.turn == turn && state.currentPlayer == current){
+                //the AI is stuck; end its turn so the game can continue
+                if(++steps >= maxStepsPerTurn){
+                    Log.warn("{0} made no progress in {1} steps, ending turn.", state.player().name, steps);
+                    apply(state, new EndTurn());
+                }
+            }else{
+                //record money at the end of every whole turn
+                if(state.turn != turn){
+                    for(int i = 0; i < money.length; i++){
+                        money[i].add(state.players.get(i).money);
+                    }
+                }
+
+                steps = 0;
+                turn = state.turn;
+                current = state.currentPlayer;
+            }
+        }
+
+        Player winner = state.players.find(p -> p.money >= State.winMoneyAmount && state.hasConnectedAllCities(p));
+
+        int[][] moneyByTurn = new int[playerCount][];
+        long[] planningTime = new long[playerCount];
+        int[] planUpdates = new int[playerCount];
+        for(int i = 0; i < playerCount; i++){
+            moneyByTurn[i] = money[i].toArray();
+            AI ai = state.players.get(i).ai;
+            if(ai instanceof CurrentAI){
+                planningTime[i] = ((CurrentAI)ai).planningTime;
+                planUpdates[i] = ((CurrentAI)ai).planUpdates;
+            }
+        }
+
+        return new Result(seed, state.turn, winner == null ? -1 : state.players.indexOf(winner, true),
+                state.players.mapInt(p -> p.money).toArray(), moneyByTurn, planningTime, planUpdates, Time.timeSinceMillis(startTime));
+    }
+
+    /** Loads a game saved with {@link SaveIO#save(State, FileHandle)}, such as a turn snapshot, in this simulation's world.*/
+    public State load(FileHandle file){
+        State state = new State();
+        state.world = world;
+        state.cards = new Array<>();
+        //only used for its JSON setup, which reads tiles from this state's world
+        WorldSend send = new ActionRelay(null, state).readString(WorldSend.class, file.readString());
+        send.apply(state);
+        state.publishSnapshot();
+        return state;
+    }
+
+    /** Checks that branch and bound pruning never changes the plan chosen. For every saved game in a directory,
+     * the current player plans once with pruning and once without, and the two best plans are compared.
+     * @return the number of games where the chosen plans differ */
+    public int checkPruning(FileHandle directory){
+        AI.blocking = true;
+        int mismatches = 0;
+
+        for(FileHandle file : directory.list(".json")){
+            State state = load(file);
+            Player player = state.player();
+
+            CurrentAI pruned = new CurrentAI(player, state), unpruned = new CurrentAI(player, state);
+            unpruned.prune = false;
+            Candidate a = pruned.findBestPlanInOrder(), b = unpruned.findBestPlanInOrder();
+
+            boolean same = a == null ? b == null : b != null && a.index == b.index && a.cost == b.cost;
+            if(same){
+                Log.info("{0}: same plan, cost {1}.", file.name(), a == null ? "none" : a.cost);
+            }else{
+                mismatches ++;
+                Log.err("{0}: pruned plan {1} (cost {2}) differs from unpruned plan {3} (cost {4}).", file.name(),
+                        a == null ? -1 : a.index, a == null ? "none" : a.cost, b == null ? -1 : b.index, b == null ? "none" : b.cost);
+            }
+        }
+
+        return mismatches;
+    }
+
+    /** Applies an action to a game's state as its current player, like the action relay does without a connection.*/
+    static void apply(State state, Action action){
+        if(action instanceof PlayerAction){
+            ((PlayerAction)action).player = state.player();
+        }
+        action.apply(state);
+        state.invalidateSnapshot();
+    }
+
+    /** The outcome of a single simulated game. All arrays are indexed by player.*/
+    public static class Result{
+        public final long seed;
+        /** The turn the game ended on.*/
+        public final int turns;
+        /** Index of the winning player, or -1 if the turn limit was reached.*/
+        public final int winner;
+        /** Money of each player at the end of the game.*/
+        public final int[] money;
+        /** Money of each player at the end of every whole turn.*/
+        public final int[][] moneyByTurn;
+        /** Time each player's AI spent planning, in milliseconds. Zero for AIs that don't report it.*/
+        public final long[] planningTime;
+        /** Number of plan updates of each player's AI.*/
+        public final int[] planUpdates;
+        /** Real time taken to play the game, in milliseconds.*/
+        public final long time;
+
+        public Result(long seed, int turns, int winner, int[] money, int[][] moneyByTurn, long[] planningTime, int[] planUpdates, long time){
+            this.seed = seed;
+            this.turns = turns;
+            this.winner = winner;
+            this.money = money;
+            this.moneyByTurn = moneyByTurn;
+            this.planningTime = planningTime;
+            this.planUpdates = planUpdates;
+            this.time = time;
+        }
+
+        @Override
+        public String toString(){
+            return Strings.format("seed={0} turns={1} winner={2} money={3} time={4}ms",
+                    seed, turns, winner, Arrays.toString(money), time);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package empire.ai;
+
+import empire.ai.Simulation.Result;
+import empire.game.*;
+import io.anuke.arc.collection.Array;
+import io.anuke.arc.function.BiFunction;
+import io.anuke.arc.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Plays many simulated games at once to compare AI configurations.
+ * Every game has one player per configuration. Seats are rotated between games, so no configuration always moves first.*/
+public class Tournament{
+    /** Interval, in turns, at which average money is reported.*/
+    private static final int moneyReportInterval = 10;
+
+    public final Simulation simulation;
+    public final Array<Entry> entries = new Array<>();
+    /** Number of games played at the same time.*/
+    public int threads = Runtime.getRuntime().availableProcessors();
+
+    public Tournament(Simulation simulation){
+        this.simulation = simulation;
+    }
+
+    /** Adds a configuration that plays in every game.*/
+    public void add(String name, BiFunction<Player, State, AI> ai){
+        entries.add(new Entry(name, ai));
+    }
+
+    /** Plays games and collects the results of each configuration.
+     * @param seed seed of the first game; game i uses seed + i */
+    public Array<Entry> run(long seed, int games){
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Result>> futures = new ArrayList<>();
+
+        try{
+            for(int i = 0; i < games; i++){
+                long gameSeed = seed + i;
+                Array<BiFunction<Player, State, AI>> ais = new Array<>();
+                for(int j = 0; j < entries.size; j++){
+                    ais.add(entries.get((i + j) % entries.size).ai);
+                }
+                futures.add(executor.submit(() -> simulation.play(gameSeed, ais)));
+            }
+
+            for(int i = 0; i < games; i++){
+                Result result = futures.get(i).get();
+                Log.info("Game {0}: {1}", i, result);
+
+                for(int seat = 0; seat < entries.size; seat++){
+                    entries.get((i + seat) % entries.size).record(result, seat);
+                }
+            }
+        }catch(InterruptedException | ExecutionException e){
+            throw new RuntimeException(e);
+        }finally{
+            executor.shutdown();
+        }
+
+        return entries;
+    }
+
+    /** An AI configuration and its results.*/
+    public static class Entry{
+        public final String name;
+        public final BiFunction<Player, State, AI> ai;
+
+        public int games, wins, winTurns, planUpdates;
+        public long planningTime;
+        /** Total money at the end of each turn, and the number of games that reached that turn.*/
+        public long[] moneyByTurn = {};
+        public int[] moneySamples = {};
+
+        public Entry(String name, BiFunction<Player, State, AI> ai){
+            this.name = name;
+            this.ai = ai;
+        }
+
+        void record(Result result, int seat){
+            games ++;
+            if(result.winner == seat){
+                wins ++;
+                winTurns += result.turns;
+            }
+
+            planningTime += result.planningTime[seat];
+            planUpdates += result.planUpdates[seat];
+
+            int[] money = result.moneyByTurn[seat];
+            if(money.length > moneyByTurn.length){
+                moneyByTurn = Arrays.copyOf(moneyByTurn, money.length);
+                moneySamples = Arrays.copyOf(moneySamples, money.length);
+            }
+            for(int i = 0; i < money.length; i++){
+                moneyByTurn[i] += money[i];
+                moneySamples[i] ++;
+            }
+        }
+
+        /** @return the average turn this configuration won on, or 0 if it never won. */
+        public float averageWinTurn(){
+            return wins == 0 ? 0 : (float)winTurns / wins;
+        }
+
+        /** @return the average money at the end of a turn, counting only games that lasted that long. */
+        public float averageMoney(int turn){
+            return turn >= moneySamples.length || moneySamples[turn] == 0 ? 0 : (float)moneyByTurn[turn] / moneySamples[turn];
+        }
+
+        /** @return the average time taken by a single plan update, in milliseconds. */
+        public float averagePlanTime(){
+            return planUpdates == 0 ? 0 : (float)planningTime / planUpdates;
+        }
+
+        @Override
+        public String toString(){
+            StringBuilder money = new StringBuilder();
+            for(int i = moneyReportInterval - 1; i < moneySamples.length; i += moneyReportInterval){
+                money.append(" ").append(i + 1).append(":").append((int)averageMoney(i));
+            }
+
+            return Strings.format("{0}: won {1}/{2}, average win turn {3}, {4}ms per plan, ECU by turn{5}",
+                    name, wins, games, averageWinTurn(), averagePlanTime(), money);
+        }
+    }
+}
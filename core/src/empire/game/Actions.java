@@ -15,6 +15,8 @@ public class Actions{
     public interface Action{
         void apply(State state);
 
+        /** Handles this action as the local player of the application's game. Games hosted elsewhere, such as
+         * server rooms and simulations, apply actions through their own relay or state instead.*/
         default void act(){
             EmpireCore.actions.handle(this);
         }
@@ -38,6 +40,11 @@ public class Actions{
         public int currentPlayer;
         public int turn;
         public boolean lastLocal;
+        /** Index of the player that is local to the receiver, or -1.*/
+        public int localPlayer = -1;
+        /** The game this state belongs to, and the number of logged actions it includes.*/
+        public long session;
+        public int sequence;
 
         @Override
         public void apply(State state){
@@ -57,12 +64,24 @@ public class Actions{
             if(lastLocal){
                 state.players.peek().local = true;
             }
+
+            if(localPlayer != -1){
+                state.players.get(localPlayer).local = true;
+            }
+
+            state.updateTrackOwners();
         }
     }
 
     public static class Connect implements Action{
         public String name;
         public Color color;
+        /** Newest binary protocol version the client understands; 0 if it only speaks JSON.*/
+        public int protocol;
+        /** Game and last action applied by a reconnecting client, which then only needs the actions it missed.
+         * A sequence of -1 means the client needs the whole state.*/
+        public long session;
+        public int sequence = -1;
 
         @Override
         public void apply(State state){
@@ -80,11 +99,18 @@ public class Actions{
             City randomCity = state.world.cities().iterator().next();
 
             state.players.add(new Player(name, state.world.tile(randomCity.x, randomCity.y), color, state.grabCards()));
+        }
+    }
 
-            //must be local player if it's just sent and there's nothing local yet.
-            if(!state.players.contains(p -> p.local)){
-                state.players.peek().local = true;
-            }
+    /** Tells a client which player is its own. Only sent to that client, after everything it needs to catch up,
+     * so the index refers to the players it ends up with; never logged or counted in the action sequence.*/
+    public static class AssignPlayer implements Action{
+        public int player;
+
+        @Override
+        public void apply(State state){
+            state.players.each(p -> p.local = false);
+            state.players.get(player).local = true;
         }
     }
 
@@ -96,6 +122,7 @@ public class Actions{
             Player p = state.players.get(player);
             state.reclaimCards(p);
             state.players.remove(player);
+            state.updateTrackOwners();
         }
     }
 
@@ -105,7 +132,9 @@ public class Actions{
         @Override
         public void apply(State state){
             Player player = state.players.get(playerID);
-            ui.chat.addMessage(message, "[#" + player.color + "]" + player.name);
+            if(state.displayed && ui != null){
+                ui.chat.addMessage(message, "[#" + player.color + "]" + player.name);
+            }
         }
     }
 
@@ -125,7 +154,9 @@ public class Actions{
             player.position = location;
             player.visualpos.set(player.position);
             player.chosenLocation = true;
-            renderer.doLerp = true;
+            if(state.displayed && renderer != null){
+                renderer.doLerp = true;
+            }
         }
     }
 
@@ -162,7 +193,7 @@ public class Actions{
             }
 
             player.addCargo(cargo);
-            if(player.local){
+            if(player.local && state.displayed && ui != null){
                 ui.showFade(Strings.capitalize(cargo) + " obtained.");
             }
         }
@@ -174,7 +205,9 @@ public class Actions{
         @Override
         public void apply(State state){
             state.sellGood(state.player(), state.world.getCity(player.position), cargo);
-            ui.hud.refresh();
+            if(state.displayed && ui != null){
+                ui.hud.refresh();
+            }
         }
     }
 
@@ -200,7 +233,7 @@ public class Actions{
         public int type; //0 = fast, 1 = heavy
 
         public void apply(State state){
-            if(player.local){
+            if(player.local && state.displayed && ui != null){
                 ui.showFade("Upgrade Purchased!");
             }
             state.purchaseLoco(player, player.loco == Loco.freight ? type == 0 ? Loco.fastFreight : Loco.heavyFreight : Loco.superFreight);
@@ -4,7 +4,6 @@ import empire.game.World.City;
 import empire.game.World.River;
 import empire.game.World.Sea;
 import empire.game.World.Tile;
-import empire.gfx.EmpireCore;
 import io.anuke.arc.collection.Array;
 import io.anuke.arc.math.geom.Geometry;
 import io.anuke.arc.util.*;
@@ -31,22 +30,22 @@ public abstract class EventCard extends Card{
     }
 
     /** @return whether the player can move with this card drawn. */
-    public boolean canMove(Player player, Tile from, Tile to){
+    public boolean canMove(State state, Player player, Tile from, Tile to){
         return true;
     }
 
     /** @return whether the player can place track with this card drawn. */
-    public boolean canPlaceTrack(Player player, Tile from, Tile to){
+    public boolean canPlaceTrack(State state, Player player, Tile from, Tile to){
         return true;
     }
 
     /** @return whether the player can load cargo with this card drawn. */
-    public boolean canLoadOrUnload(Player player, Tile tile){
+    public boolean canLoadOrUnload(State state, Player player, Tile tile){
         return true;
     }
 
     /** @return whether this position is in an area with half rate. */
-    public boolean isHalfRate(Player player, Tile tile){
+    public boolean isHalfRate(State state, Player player, Tile tile){
         return false;
     }
 
@@ -68,7 +67,7 @@ public abstract class EventCard extends Card{
         }
 
         @Override
-        public boolean canLoadOrUnload(Player player, Tile tile){
+        public boolean canLoadOrUnload(State state, Player player, Tile tile){
             return !tile.inland;
         }
     }
@@ -91,7 +90,7 @@ public abstract class EventCard extends Card{
         }
 
         @Override
-        public boolean canLoadOrUnload(Player player, Tile tile){
+        public boolean canLoadOrUnload(State state, Player player, Tile tile){
             return tile.inland;
         }
     }
@@ -114,13 +113,13 @@ public abstract class EventCard extends Card{
         }
 
         @Override
-        public boolean canPlaceTrack(Player player, Tile from, Tile to){
+        public boolean canPlaceTrack(State state, Player player, Tile from, Tile to){
             return player.eventCards.contains(c -> c == this);
         }
 
         @Override
-        public boolean canMove(Player player, Tile from, Tile to){
-            return !EmpireCore.state.players.contains(p -> p.eventCards.contains(c -> c == this));
+        public boolean canMove(State state, Player player, Tile from, Tile to){
+            return !state.players.contains(p -> p.eventCards.contains(c -> c == this));
         }
     }
 
@@ -194,13 +193,13 @@ public abstract class EventCard extends Card{
                         //TODO, currently the last cargo is popped off instead of a choice
                         if(p.cargo.size > 0){
                             String cargo = p.cargo.pop();
-                            if(p.local){
+                            if(p.local && state.displayed && ui != null){
                                 ui.showDialog("You've been derailed!", d -> {
                                     d.cont.add("You were near [lime]" + city.formalName() + "[].\nCargo lost: [yellow]" + Strings.capitalize(cargo));
                                 });
                             }
                         }else{
-                            if(p.local){
+                            if(p.local && state.displayed && ui != null){
                                 ui.showDialog("You've been derailed!", d -> {
                                     d.cont.add("You were near [lime]" + city.formalName() + "[].\nNo cargo in train, so none lost.");
                                 });
@@ -239,19 +238,19 @@ public abstract class EventCard extends Card{
         }
 
         @Override
-        public boolean canPlaceTrack(Player player, Tile from, Tile to){
+        public boolean canPlaceTrack(State state, Player player, Tile from, Tile to){
             //prevent mountain placing
             return !(to.isMountainous() && to.distanceTo(city.x, city.y) <= dst);
         }
 
         @Override
-        public boolean canMove(Player player, Tile from, Tile to){
+        public boolean canMove(State state, Player player, Tile from, Tile to){
             //prevent mountain moving
             return !(to.isMountainous() && to.distanceTo(city.x, city.y) <= dst);
         }
 
         @Override
-        public boolean isHalfRate(Player player, Tile tile){
+        public boolean isHalfRate(State state, Player player, Tile tile){
             return tile.distanceTo(city.x, city.y) <= dst;
         }
     }
@@ -261,8 +260,6 @@ public abstract class EventCard extends Card{
         public int dst;
         public Array<Sea> seas;
 
-        private boolean out = false;
-
         @Override
         public void load(Scanner scan, World world){
             dst = scan.nextInt();
@@ -281,23 +278,23 @@ public abstract class EventCard extends Card{
         }
 
         @Override
-        public boolean isHalfRate(Player player, Tile tile){
-            State state = EmpireCore.state;
-            out = false;
+        public boolean isHalfRate(State state, Player player, Tile tile){
+            //cards are shared between games, so the result can't be stored in the card
+            boolean[] out = {false};
 
             Geometry.circle(player.position.x, player.position.y,
                     state.world.width, state.world.height, dst, (x, y) -> {
                 if(seas.contains(state.world.tile(x, y).sea)){
-                    out = true;
+                    out[0] = true;
                 }
             });
 
-            return out;
+            return out[0];
         }
 
         @Override
-        public boolean canPlaceTrack(Player player, Tile from, Tile to){
-            return !isHalfRate(player, to);
+        public boolean canPlaceTrack(State state, Player player, Tile from, Tile to){
+            return !isHalfRate(state, player, to);
         }
     }
 
@@ -322,12 +319,12 @@ public abstract class EventCard extends Card{
         }
 
         @Override
-        public boolean canPlaceTrack(Player player, Tile from, Tile to){
-            return !isHalfRate(player, to);
+        public boolean canPlaceTrack(State state, Player player, Tile from, Tile to){
+            return !isHalfRate(state, player, to);
         }
 
         @Override
-        public boolean isHalfRate(Player player, Tile tile){
+        public boolean isHalfRate(State state, Player player, Tile tile){
             return tile.distanceTo(city.x, city.y) <= dst;
         }
     }
@@ -355,20 +352,20 @@ public abstract class EventCard extends Card{
             //remove all track that crosses this river
             Array<Tile[]> removals = new Array<>();
 
-            player.eachTrack((from, to) -> {
+            player.eachTrack(state.world, (from, to) -> {
                 if(from.crossings != null && from.crossings.contains(p -> p.to == to && p.river == river)){
                     removals.add(new Tile[]{from, to});
                 }
             });
 
             for(Tile[] pair : removals){
-                player.removeTrack(pair[0], pair[1]);
+                state.removeTrack(player, pair[0], pair[1]);
             }
             return false;
         }
 
         @Override
-        public boolean canPlaceTrack(Player player, Tile from, Tile to){
+        public boolean canPlaceTrack(State state, Player player, Tile from, Tile to){
             //prevent placing across rivers here
             if(from.crossings != null && from.crossings.contains(p -> p.to == to && p.river == river)){
                 return false;
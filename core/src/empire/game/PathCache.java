@@ -1,39 +1,212 @@
 package empire.game;
 
 import empire.ai.Astar;
-import empire.game.World.City;
-import io.anuke.arc.collection.Array;
+import empire.game.World.*;
+import io.anuke.arc.collection.*;
+import io.anuke.arc.math.geom.Point2;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/** Caches the cost of travelling between every pair of cities for a single player.
+ * Each city has a row of costs to every tile on the map; rows are only recalculated when the player's tracks
+ * could have made them cheaper. */
 public class PathCache{
     private final float[][] cityCosts;
-    private final State state;
+    /** Costs from each city to every tile, by city ID and then tile index.*/
+    private final float[][] tileCosts;
+    /** Indices of the tiles that count as each city, by city ID. Major cities have several.*/
+    private final int[][] cityTiles;
+    private final City[] cities;
+    private State state;
+    private Player player;
+    /** Pathfinder used when calculating on a single thread.*/
     private final Astar astar;
+    /** Pathfinders for worker threads.*/
+    private final ThreadLocal<Astar> workerAstar;
+
+    /** The player's tracks at the time of the last calculation.*/
+    private final Tracks known;
+    /** Versions of every player's tracks at the time of the last calculation; null if never calculated.*/
+    private IntArray knownVersions;
+    private Loco knownLoco;
+    /** Scratch list of new tracks, as tile index pairs.*/
+    private final IntArray added = new IntArray();
 
     public PathCache(State state, Player player){
         int length = Array.with(state.world.cities()).size;
 
         this.state = state;
+        this.player = player;
         this.cityCosts = new float[length][length];
-        this.astar = new Astar(player);
+        this.tileCosts = new float[length][state.world.width * state.world.height];
+        this.cityTiles = new int[length][];
+        this.cities = new City[length];
+        this.astar = new Astar(player, state);
+        this.workerAstar = ThreadLocal.withInitial(() -> new Astar(player, state));
+        this.known = new Tracks(state.world.width, state.world.height);
+
+        for(City city : state.world.cities()){
+            cities[city.id] = city;
+
+            IntArray tiles = IntArray.with(state.world.index(state.world.tile(city)));
+            //major cities can be entered through any of their outer tiles
+            if(city.size == CitySize.major){
+                Tile center = state.world.tile(city);
+                for(Point2 p : center.getAdjacent()){
+                    Tile other = state.world.tileOpt(center.x + p.x, center.y + p.y);
+                    if(other != null){
+                        tiles.add(state.world.index(other));
+                    }
+                }
+            }
+            cityTiles[city.id] = tiles.toArray();
+        }
+    }
+
+    /** Points this cache at another copy of the same game, such as a newer snapshot of it.
+     * Costs are kept, and brought up to date by the next {@link #update(ExecutorService)}. */
+    public void setState(State state, Player player){
+        this.state = state;
+        this.player = player;
+    }
+
+    /** @return the cost of travelling from one city to another, using existing track where possible.
+     * Only valid after {@link #update(ExecutorService)} has been called. */
+    public float cost(City from, City to){
+        return cityCosts[from.id][to.id];
     }
 
-    /** Calculates distances between all cities.*/
-    public void calculate(State state){
-        for(City city : Array.with(state.world.cities())){
-            for(City other : state.world.cities()){
-                cityCosts[city.id][other.id] = shortestPath(city, other);
+    /** @return the cost of travelling from a city to any tile, using existing track where possible.
+     * Only valid after {@link #update(ExecutorService)} has been called. */
+    public float cost(City from, Tile to){
+        return tileCosts[from.id][state.world.index(to)];
+    }
+
+    /** Calculates distances between all cities.
+     * @param executor executor used to calculate rows in parallel; if null, everything is calculated on this thread. */
+    public void calculate(ExecutorService executor){
+        IntArray rows = new IntArray();
+        for(int i = 0; i < cities.length; i++){
+            rows.add(i);
+        }
+
+        calculateRows(rows, executor);
+        snapshot();
+    }
+
+    /** Brings the cached costs up to date with the current tracks.
+     * Only the rows that could have been improved by track placed since the last update are recalculated.
+     * @param executor executor used to calculate rows in parallel; if null, everything is calculated on this thread. */
+    public void update(ExecutorService executor){
+        //new other player track or a loco change can make paths more expensive, so everything needs to be redone
+        if(knownVersions == null || knownLoco != player.loco || othersChanged()){
+            calculate(executor);
+            return;
+        }
+
+        //find new tracks; if anything was removed, paths may have become more expensive
+        added.clear();
+        boolean[] removed = {false};
+        player.tracks.each((x, y, x2, y2) -> {
+            if(!known.has(x, y, x2, y2)){
+                added.add(state.world.index(state.world.tile(x, y)), state.world.index(state.world.tile(x2, y2)));
+            }
+        });
+        known.each((x, y, x2, y2) -> {
+            if(!player.tracks.has(x, y, x2, y2)){
+                removed[0] = true;
             }
+        });
+
+        if(removed[0]){
+            calculate(executor);
+            return;
         }
+
+        if(added.isEmpty()){
+            return;
+        }
+
+        //a row can only get cheaper if one of the new track's ends can now be reached more cheaply through it,
+        //since moving along track costs exactly one move
+        IntArray rows = new IntArray();
+        for(int i = 0; i < cities.length; i++){
+            float[] row = tileCosts[i];
+            for(int j = 0; j < added.size; j += 2){
+                int a = added.get(j), b = added.get(j + 1);
+                if(row[a] + 1f < row[b] || row[b] + 1f < row[a]){
+                    rows.add(i);
+                    break;
+                }
+            }
+        }
+
+        calculateRows(rows, executor);
+        snapshot();
     }
 
-    public void recalculate(City city){
-        for(City other : state.world.cities()){
-            float dst = shortestPath(city, other);
+    private void calculateRows(IntArray rows, ExecutorService executor){
+        if(executor == null || rows.size <= 1){
+            for(int i = 0; i < rows.size; i++){
+                calculateRow(astar, rows.get(i));
+            }
+            return;
+        }
 
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for(int i = 0; i < rows.size; i++){
+            int row = rows.get(i);
+            tasks.add(() -> {
+                calculateRow(workerAstar.get(), row);
+                return null;
+            });
+        }
+
+        try{
+            for(Future<Void> future : executor.invokeAll(tasks)){
+                future.get();
+            }
+        }catch(InterruptedException | ExecutionException e){
+            throw new RuntimeException(e);
         }
     }
 
-    private float shortestPath(City from, City to){
-        return astar.astar(state.world.tile(from), state.world.tile(to));
+    private void calculateRow(Astar astar, int city){
+        astar.setState(state);
+        astar.setPlayer(player);
+        float[] row = tileCosts[city];
+        astar.distances(state.world.tile(cities[city]), row);
+
+        for(int other = 0; other < cities.length; other++){
+            float min = Float.POSITIVE_INFINITY;
+            for(int tile : cityTiles[other]){
+                min = Math.min(min, row[tile]);
+            }
+            cityCosts[city][other] = min;
+        }
+    }
+
+    /** Records the track state that the current costs were calculated with.*/
+    private void snapshot(){
+        known.set(player.tracks);
+        knownLoco = player.loco;
+        knownVersions = new IntArray();
+        for(Player other : state.players){
+            knownVersions.add(other == player ? 0 : other.tracks.version());
+        }
+    }
+
+    private boolean othersChanged(){
+        if(knownVersions.size != state.players.size) return true;
+
+        for(int i = 0; i < state.players.size; i++){
+            Player other = state.players.get(i);
+            if(other != player && other.tracks.version() != knownVersions.get(i)){
+                return true;
+            }
+        }
+        return false;
     }
 }
@@ -3,7 +3,6 @@ package empire.game;
 import empire.ai.AI;
 import empire.game.DemandCard.Demand;
 import empire.game.World.*;
-import empire.gfx.EmpireCore;
 import io.anuke.arc.collection.*;
 import io.anuke.arc.function.*;
 import io.anuke.arc.graphics.Color;
@@ -89,11 +88,9 @@ public class Player{
     /** Returns whether a certain action is allowed, according to the event cards.
      * If any one of them returns false, false is returned.*/
     public boolean isAllowed(Predicate<EventCard> pred){
-        for(Player player : EmpireCore.state.players){
-            for(EventCard card : eventCards){
-                if(!pred.test(card)){
-                    return false;
-                }
+        for(EventCard card : eventCards){
+            if(!pred.test(card)){
+                return false;
             }
         }
         return true;
@@ -151,9 +148,8 @@ public class Player{
         return tracks.connections(tile.x, tile.y);
     }
 
-    /** Iterates through each unique track that this player has.
-     * Pairs are only iterated once, so make sure to check both ends.*/
-    public void eachTrack(BiConsumer<Tile, Tile> cons){
-        tracks.each((x, y, x2, y2) -> cons.accept(EmpireCore.state.world.tile(x, y), EmpireCore.state.world.tile(x2, y2)));
+    /** Iterates through each track that this player has, in a specific world.*/
+    public void eachTrack(World world, BiConsumer<Tile, Tile> cons){
+        tracks.each((x, y, x2, y2) -> cons.accept(world.tile(x, y), world.tile(x2, y2)));
     }
 }
@@ -10,6 +10,9 @@ import io.anuke.arc.collection.*;
 import io.anuke.arc.function.Consumer;
 import io.anuke.arc.util.*;
 
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicReference;
+
 import static empire.gfx.EmpireCore.snapshotDirectory;
 
 /** Holds the state of the entire game. */
@@ -39,6 +42,21 @@ public class State{
     public Array<Card> cards;
     /** Whether someone has already won.*/
     public boolean hasWinner = false;
+    /** Whether this is the game that the application shows. Only that game fires global {@link Events}, updates the UI
+     * and saves turn snapshots; games hosted by server rooms, simulated or copied for planning run on other threads,
+     * possibly several at once, so they never touch any of those.*/
+    public boolean displayed = false;
+
+    /** Index of which players own each track.*/
+    private TrackOwners owners = new TrackOwners();
+    /** The world that the track owner index was built for.*/
+    private World ownersWorld;
+    /** Connected components of each player's track.*/
+    private final ObjectMap<Player, TrackComponents> components = new ObjectMap<>();
+    /** The latest snapshot of this state; null if none has been published yet.*/
+    private final AtomicReference<StateSnapshot> snapshot = new AtomicReference<>();
+    /** Whether this state has changed since the latest snapshot. Only used on the thread that modifies this state.*/
+    private boolean snapshotStale = true;
 
     /** Grabs 3 demand cards from the top of the deck and returns them.
      * Event cards are discarded.*/
@@ -72,37 +90,27 @@ public class State{
         return turn <= preMovementTurns;
     }
 
+    /** Fires a global event, if this is the game that the application shows.*/
+    public void fire(Object event){
+        if(displayed){
+            Events.fire(event);
+        }
+    }
+
     /** Checks if a player has won a game, and runs the onWin callback if that is the case.*/
     public void checkIfWon(Player player){
         if(player.money >= winMoneyAmount && hasConnectedAllCities(player)){
-            Events.fire(new WinEvent(player));
+            fire(new WinEvent(player));
             hasWinner = true;
         }
     }
 
     public boolean hasConnectedAllCities(Player player){
-        int checked = 0;
-
-        for(City city : world.cities()){
-            //if 2 cities don't have the right connections, none of them can, since there are 8 cities and 7 needed to win.
-            if(checked >= 2){
-                return false;
-            }
-
-            if(city.size == CitySize.major){
-                if(countConnectedCities(player, world.tile(city)) >= winCityAmount){
-                    return true;
-                }
-
-                checked ++;
-            }
-        }
-
-        return false;
+        return components(player).largestMajorCities() >= winCityAmount;
     }
 
     public boolean canLoadUnload(Player player, Tile tile){
-        return player.isAllowed(e -> e.canLoadOrUnload(player, tile));
+        return player.isAllowed(e -> e.canLoadOrUnload(this, player, tile));
     }
 
     /** Simulates a 'sell good' event.*/
@@ -113,7 +121,7 @@ public class State{
             player.money += demand.cost;
             player.cargo.remove(good);
             int idx = Structs.indexOf(player.demandCards, card);
-            player.demandCards[idx] = drawDemandCard(event -> handleEvent(event, player, e -> Events.fire(new EventEvent(e))));
+            player.demandCards[idx] = drawDemandCard(event -> handleEvent(event, player, e -> fire(new EventEvent(e))));
             this.cards.insert(0, card);
         }else{
             throw new IllegalArgumentException("Incorrect usage. No matching city/good combination found.");
@@ -127,7 +135,7 @@ public class State{
         }
         for(int i = 0; i < 3; i++){
             player.demandCards[i] = drawDemandCard(event ->
-                    handleEvent(event, player, card -> Events.fire(new EventEvent(card))));
+                    handleEvent(event, player, card -> fire(new EventEvent(card))));
         }
     }
 
@@ -140,7 +148,7 @@ public class State{
     /** Switches turns to the next player.
      * Increments total turn if needed.*/
     public void nextPlayer(){
-        if(EmpireCore.snapshots && turn == 1){
+        if(displayed && EmpireCore.snapshots && turn == 1){
             SaveIO.save(this, snapshotDirectory.child("turn-" + turn + ".json"));
         }
 
@@ -165,14 +173,14 @@ public class State{
             Log.info("Turn: {0}", turn);
         }
 
-        Events.fire(new EndTurnEvent(last, player()));
+        fire(new EndTurnEvent(last, player()));
 
         //recursively advance the next player until there are no lost turns left.
         if(player().lostTurns > 0){
             nextPlayer();
         }
 
-        if(EmpireCore.snapshots){
+        if(displayed && EmpireCore.snapshots){
             SaveIO.save(this, snapshotDirectory.child("turn-" + turn + ".json"));
         }
     }
@@ -186,13 +194,84 @@ public class State{
 
     /** Places a single track for a player and updates money for the player. */
     public void placeTrack(Player player, Tile from, Tile to){
+        TrackComponents connected = components(player);
         player.addTrack(from, to);
+        trackOwners().add(players.indexOf(player, true), from, to);
+        connected.add(from, to, player.tracks.version());
 
         int cost = getTrackCost(from, to);
         player.money -= cost;
         player.moneySpent += cost;
     }
 
+    /** Removes a single track of a player.*/
+    public void removeTrack(Player player, Tile from, Tile to){
+        player.removeTrack(from, to);
+        trackOwners().remove(players.indexOf(player, true), from, to);
+    }
+
+    /** @return the index of track owners, building it first if the world has changed. */
+    public TrackOwners trackOwners(){
+        if(ownersWorld != world){
+            updateTrackOwners();
+        }
+        return owners;
+    }
+
+    /** Rebuilds the track owner index. Must be called whenever players are replaced or removed.*/
+    public void updateTrackOwners(){
+        ownersWorld = world;
+        owners.rebuild(this);
+        components.clear();
+    }
+
+    /** @return the connected components of a player's track, rebuilding them first if the track has changed
+     * in any way other than {@link #placeTrack(Player, Tile, Tile)}. */
+    public TrackComponents components(Player player){
+        TrackComponents out = components.get(player);
+        if(out == null || !out.isFor(world, player.tracks)){
+            components.put(player, out = new TrackComponents(world, player.tracks));
+        }
+        return out;
+    }
+
+    /** Uses components that are shared with another state. Only for snapshots, which never modify them.*/
+    void shareComponents(Player player, TrackComponents components){
+        this.components.put(player, components);
+    }
+
+    /** Uses a track owner index that is shared with another state. Only for snapshots, which never modify it.*/
+    void shareTrackOwners(TrackOwners owners){
+        this.owners = owners;
+        this.ownersWorld = world;
+    }
+
+    /** Marks the latest snapshot as out of date. Must be called on the thread that modifies this state, after every
+     * modification; the action relay does this after applying each action. Nothing is copied until a snapshot is
+     * published, so this is cheap when no AI is planning.*/
+    public void invalidateSnapshot(){
+        snapshotStale = true;
+    }
+
+    /** Makes a snapshot of this state if it has changed since the latest one, and publishes it for planning threads.
+     * Must be called on the thread that modifies this state; AIs do this before handing work to other threads.
+     * @return the latest snapshot */
+    public StateSnapshot publishSnapshot(){
+        StateSnapshot out = snapshot.get();
+        if(out == null || snapshotStale){
+            snapshot.set(out = StateSnapshot.of(this, out));
+            snapshotStale = false;
+        }
+        return out;
+    }
+
+    /** @return the latest published snapshot. If none has been published yet, one is made, which is only safe on the
+     * thread that modifies this state. */
+    public StateSnapshot snapshot(){
+        StateSnapshot out = snapshot.get();
+        return out == null ? publishSnapshot() : out;
+    }
+
     public Player player(){
         return players.get(currentPlayer);
     }
@@ -213,7 +292,7 @@ public class State{
     public boolean checkTrackLimits(Player player, Tile tile){
         //only 2 players can build to or from a port
         if(tile.port != null){
-            if(players.count(p -> p.hasTrack(tile)) >= 2){
+            if(Integer.bitCount(trackOwners().owners(tile)) >= 2){
                 return false;
             }
         }
@@ -225,9 +304,10 @@ public class State{
             }
 
             //max 3 players can build into medium, max 2 into small
-            if(tile.city.size == CitySize.medium && players.count(p -> p.hasTrack(tile)) >= 3){
+            int owners = Integer.bitCount(trackOwners().owners(tile));
+            if(tile.city.size == CitySize.medium && owners >= 3){
                 return false;
-            }else if(tile.city.size == CitySize.small && players.count(p -> p.hasTrack(tile)) >= 2){
+            }else if(tile.city.size == CitySize.small && owners >= 2){
                 return false;
             }
         }
@@ -254,7 +334,7 @@ public class State{
         }
 
         //sometimes events don't allow placing tack
-        if(!player.isAllowed(event -> event.canPlaceTrack(player, from, to))){
+        if(!player.isAllowed(event -> event.canPlaceTrack(this, player, from, to))){
             return false;
         }
 
@@ -275,7 +355,7 @@ public class State{
 
         //make sure that this track is not used by a different player
         //(including this player)
-        if(players.contains(other -> other.hasTrack(from, to))){
+        if(trackOwners().owners(from, to) != 0){
             return false;
         }
 
@@ -293,28 +373,7 @@ public class State{
     }
 
     public int getTrackCost(Tile from, Tile to){
-        //calculate base cost with (8!) nested ternary statements
-        int baseCost =
-            to.city != null ?
-                    (
-                    to.city.size == CitySize.small ? 3 :
-                    to.city.size == CitySize.medium ? 3 : 0
-                    ) :
-            world.sameCity(to, from) ? 0 :
-            world.getMajorCity(to) != null ? 1 :
-            to.port != null ? to.port.cost :
-            to.type == Terrain.plain ? 1 :
-            to.type == Terrain.mountain ? 2 :
-            to.type == Terrain.alpine ? 5 : 0;
-
-        if(from.crossings != null){
-            WaterCrossing cross = from.crossings.find(c -> c.to == to);
-            if(cross != null){
-                baseCost += cross.cost;
-            }
-        }
-
-        return baseCost;
+        return world.trackCost(from, to);
     }
 
     /** Returns whether a tile is passable, e.g. whether a rail can go through it.*/
@@ -368,8 +427,9 @@ public class State{
 
         //check if there's another player with a track here; if there is, and the player hasn't yet
         //moved on that track, check the amount of money the player has to make sure they can move here
-        Player otherTrack = players.find(p -> p.hasTrack(player.position, to));
-        if(otherTrack != null){
+        int otherIndex = trackOwners().first(player.position, to);
+        if(otherIndex != -1){
+            Player otherTrack = players.get(otherIndex);
             return player.money >= (player.movedPlayers.contains(otherTrack) ? 0 : otherMoveTrackCost);
         }
 
@@ -379,7 +439,7 @@ public class State{
     /** Returns move cost of getting to this tile. */
     public int moveCost(Player player, Tile to){
         for(EventCard card : player.eventCards){
-            if(card.isHalfRate(player, to)){
+            if(card.isHalfRate(this, player, to)){
                 return 2;
             }
         }
@@ -403,7 +463,8 @@ public class State{
         boolean endTurn = to.port != null && player.position.port != null;
 
         //pay up for moving on other's tracks
-        Player otherTrack = players.find(p -> p.hasTrack(player.position, to));
+        int otherIndex = trackOwners().first(player.position, to);
+        Player otherTrack = otherIndex == -1 ? null : players.get(otherIndex);
         if(otherTrack != player && otherTrack != null){
             if(!player.movedPlayers.contains(otherTrack)){
                 player.money -= otherMoveTrackCost;
@@ -422,62 +483,24 @@ public class State{
 
     /** Counts cities connected to a tile using only this player's track.*/
     public int countConnectedCities(Player player, Tile other){
-        ObjectSet<Tile> closedSet = new ObjectSet<>();
-        Queue<Tile> queue = new Queue<>();
-        ObjectSet<City> citySet = new ObjectSet<>();
-
-        queue.addFirst(other);
-        closedSet.add(other);
-
-        while(!queue.isEmpty()){
-            Tile tile = queue.removeLast();
-
-            //add encountered city to set
-            if(tile.city != null && tile.city.size == CitySize.major){
-                citySet.add(tile.city);
-            }
-
-            //iterate through /connections/ of each tile
-            world.trackConnectionsOf(this, player, tile, false, child -> {
-                if(!closedSet.contains(child)){
-                    queue.addFirst(child);
-                    closedSet.add(child);
-                }
-            });
-        }
-
-        return citySet.size;
+        return components(player).majorCities(other);
     }
 
-    /** Returns a set of all tiles connected to this tile by track.*/
+    /** Returns all tiles connected to this tile by track.*/
     public ObjectSet<Tile> connectedTiles(Player player, Tile other){
+        BitSet indices = connectedTileIndices(player, other);
         ObjectSet<Tile> out = new ObjectSet<>();
-        ObjectSet<Tile> closedSet = new ObjectSet<>();
-        Queue<Tile> queue = new Queue<>();
-        Array<Tile> moveArray = new Array<>();
-
-        moveArray.clear();
-        closedSet.clear();
-        queue.clear();
-
-        queue.addFirst(other);
-        closedSet.add(other);
-
-        while(!queue.isEmpty()){
-            Tile tile = queue.removeLast();
-            out.add(tile);
-
-            //iterate through /connections/ of each tile
-            world.trackConnectionsOf(this, player, tile, false, child -> {
-                if(!closedSet.contains(child)){
-                    queue.addFirst(child);
-                    closedSet.add(child);
-                }
-            });
+        for(int i = indices.nextSetBit(0); i != -1; i = indices.nextSetBit(i + 1)){
+            out.add(world.tile(i));
         }
         return out;
     }
 
+    /** Returns the indices of all tiles connected to this tile by track. Cheaper than {@link #connectedTiles(Player, Tile)}.*/
+    public BitSet connectedTileIndices(Player player, Tile other){
+        return components(player).connectedTiles(other);
+    }
+
     /** Attempts to calculate in-between movement tiles for a player from a start point
      * to a destination. Returns an empty array if impossible.
      * This should be used to move from tile to tile and check each one for validity.*/
@@ -511,7 +534,7 @@ public class State{
             world.trackConnectionsOf(this, player, tile, true, child -> {
                 if(!closedSet.contains(child)
                         //make sure player isn't blocked by event cards!
-                        && player.isAllowed(e -> e.canMove(player, tile, child))
+                        && player.isAllowed(e -> e.canMove(this, player, tile, child))
                         && (moveOther || player.hasTrack(tile, child) || world.sameCity(tile, child) || world.samePort(tile, child))){
                     parents.put(child, tile);
                     queue.addFirst(child);
@@ -0,0 +1,86 @@
+package empire.game;
+
+/** A copy of the game state that never changes, so it can be read by planning threads while the game goes on.
+ * Snapshots are made on the thread that applies actions, and only when a planner is about to need one.
+ * Tracks and the track owner index are copy-on-write: if they haven't changed since the previous snapshot,
+ * they're shared with it instead of being copied again.
+ * Nothing in a snapshot may be modified. */
+public class StateSnapshot{
+    /** The copied state. Its players are copies of the real ones, in the same order.*/
+    public final State state;
+    /** Counts up with every snapshot of the same game.*/
+    public final int version;
+    /** The real players, by index.*/
+    private final Player[] originals;
+
+    private StateSnapshot(State state, int version, Player[] originals){
+        this.state = state;
+        this.version = version;
+        this.originals = originals;
+    }
+
+    /** Makes a snapshot of a state.
+     * @param previous the last snapshot of the same state, whose unchanged parts are shared; may be null. */
+    public static StateSnapshot of(State real, StateSnapshot previous){
+        State copy = new State();
+        copy.world = real.world;
+        copy.turn = real.turn;
+        copy.currentPlayer = real.currentPlayer;
+        copy.hasWinner = real.hasWinner;
+
+        Player[] originals = real.players.toArray(Player.class);
+        boolean comparable = previous != null && previous.state.world == real.world && previous.originals.length == originals.length;
+        boolean tracksChanged = !comparable;
+
+        for(int i = 0; i < originals.length; i++){
+            Player player = originals[i];
+            Tracks tracks;
+            TrackComponents components;
+
+            if(comparable && previous.originals[i] == player && previous.state.players.get(i).tracks.version() == player.tracks.version()){
+                Player last = previous.state.players.get(i);
+                tracks = last.tracks;
+                components = previous.state.components(last);
+            }else{
+                tracks = player.tracks.copy();
+                components = real.components(player).copy(tracks);
+                tracksChanged = true;
+            }
+
+            Player playerCopy = copy(player, tracks);
+            copy.players.add(playerCopy);
+            //connectivity is shared along with the tracks, so planning threads never have to build it
+            copy.shareComponents(playerCopy, components);
+        }
+
+        copy.shareTrackOwners(tracksChanged ? real.trackOwners().copy() : previous.state.trackOwners());
+
+        return new StateSnapshot(copy, previous == null ? 0 : previous.version + 1, originals);
+    }
+
+    /** @return the copy of a real player in this snapshot, or null if the player wasn't in the game. */
+    public Player player(Player real){
+        for(int i = 0; i < originals.length; i++){
+            if(originals[i] == real){
+                return state.players.get(i);
+            }
+        }
+        return null;
+    }
+
+    private static Player copy(Player player, Tracks tracks){
+        Player out = new Player(player.name, player.position, player.color, player.demandCards.clone());
+        out.money = player.money;
+        out.moneySpent = player.moneySpent;
+        out.moved = player.moved;
+        out.lostTurns = player.lostTurns;
+        out.loco = player.loco;
+        out.direction = player.direction;
+        out.local = player.local;
+        out.chosenLocation = player.chosenLocation;
+        out.tracks = tracks;
+        out.cargo.addAll(player.cargo);
+        out.eventCards.addAll(player.eventCards);
+        return out;
+    }
+}
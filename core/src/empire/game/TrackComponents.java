@@ -0,0 +1,181 @@
+package empire.game;
+
+import empire.game.World.*;
+
+import java.util.BitSet;
+
+/** Connected components of a single player's track network, kept with union-find over tile indices.
+ * Tiles are joined by the player's track, by being part of the same major city, and by ports, the same way
+ * {@link World#trackConnectionsOf(State, Player, Tile, boolean, io.anuke.arc.function.Consumer)} connects them.
+ * Placing track only joins components, so it's applied in place; anything else requires new components. */
+public class TrackComponents{
+    private final World world;
+    /** Union-find parent of each tile index. Roots are their own parent.*/
+    private final int[] parents;
+    /** Number of tiles in each root's component.*/
+    private final int[] sizes;
+    /** Number of major cities in each root's component.*/
+    private final int[] majors;
+    /** Major cities in the component with the most of them.*/
+    private int largest;
+    /** The tracks these components were built from, and their version at that time.*/
+    private Tracks tracks;
+    private int version;
+    /** Tiles grouped by component, made when tiles are first listed for a version; null until then.*/
+    private volatile Groups groups;
+
+    /** Builds the components of a set of tracks.*/
+    public TrackComponents(World world, Tracks tracks){
+        this.world = world;
+        int size = world.width * world.height;
+        parents = new int[size];
+        sizes = new int[size];
+        majors = new int[size];
+        rebuild(tracks);
+    }
+
+    private TrackComponents(TrackComponents other, Tracks tracks){
+        world = other.world;
+        parents = other.parents.clone();
+        sizes = other.sizes.clone();
+        majors = other.majors.clone();
+        largest = other.largest;
+        this.tracks = tracks;
+        version = other.version;
+        groups = other.groups;
+    }
+
+    /** @return a copy of these components that belongs to a copy of the same tracks. */
+    public TrackComponents copy(Tracks tracks){
+        return new TrackComponents(this, tracks);
+    }
+
+    /** @return whether these components are up to date with some tracks. */
+    public boolean isFor(World world, Tracks tracks){
+        return this.world == world && this.tracks == tracks && version == tracks.version();
+    }
+
+    private void rebuild(Tracks tracks){
+        this.tracks = tracks;
+        this.version = tracks.version();
+        largest = 0;
+
+        for(int i = 0; i < parents.length; i++){
+            parents[i] = i;
+            sizes[i] = 1;
+            Tile tile = world.tile(i);
+            //each city is only counted at its center
+            majors[i] = tile.city != null && tile.city.size == CitySize.major && world.tile(tile.city) == tile ? 1 : 0;
+            largest = Math.max(largest, majors[i]);
+        }
+
+        //tiles of the same major city and both ends of ports are always connected
+        for(int i = 0; i < parents.length; i++){
+            for(int edge = world.edgeStart(i), end = world.edgeEnd(i); edge < end; edge++){
+                int other = world.edgeTarget(edge);
+                if(world.edgeDirection(edge) == -1 || world.sameCity(world.tile(i), world.tile(other))){
+                    union(i, other);
+                }
+            }
+        }
+
+        tracks.each((x, y, x2, y2) -> union(world.index(world.tile(x, y)), world.index(world.tile(x2, y2))));
+    }
+
+    /** Joins the components of two tiles after track was placed between them.
+     * @param version the version of the tracks after placing it */
+    public void add(Tile from, Tile to, int version){
+        union(world.index(from), world.index(to));
+        this.version = version;
+    }
+
+    /** @return the number of major cities connected to a tile. */
+    public int majorCities(Tile tile){
+        return majors[find(world.index(tile))];
+    }
+
+    /** @return the number of major cities in the component with the most of them. */
+    public int largestMajorCities(){
+        return largest;
+    }
+
+    /** @return every tile connected to a tile, as a set of tile indices. */
+    public BitSet connectedTiles(Tile tile){
+        Groups groups = groups();
+        int root = groups.roots[world.index(tile)];
+        BitSet out = new BitSet(parents.length);
+        for(int i = groups.starts[root]; i < groups.starts[root + 1]; i++){
+            out.set(groups.members[i]);
+        }
+        return out;
+    }
+
+    /** @return the tiles of every component for the current version, grouping them first if needed.
+     * Snapshot components are read by several threads at once, so grouping is synchronized. */
+    private Groups groups(){
+        Groups out = groups;
+        if(out == null || out.version != version){
+            synchronized(this){
+                out = groups;
+                if(out == null || out.version != version){
+                    groups = out = new Groups();
+                }
+            }
+        }
+        return out;
+    }
+
+    /** Finds the root of a tile. Only reads the parents, so that lookups can be made from several threads at once.*/
+    private int find(int index){
+        while(parents[index] != index){
+            index = parents[index];
+        }
+        return index;
+    }
+
+    /** Tile indices sorted by component, so that listing a component only visits its own tiles.*/
+    private class Groups{
+        final int version = TrackComponents.this.version;
+        /** Root of each tile index.*/
+        final int[] roots = new int[parents.length];
+        /** Tiles of the component with root r are members[starts[r]] to members[starts[r + 1]] (exclusive).*/
+        final int[] starts = new int[parents.length + 1], members = new int[parents.length];
+
+        Groups(){
+            //each root is only found once per tile, then tiles are placed by counting sort
+            for(int i = 0; i < parents.length; i++){
+                roots[i] = find(i);
+                starts[roots[i] + 1] ++;
+            }
+            for(int i = 0; i < parents.length; i++){
+                starts[i + 1] += starts[i];
+            }
+            int[] next = starts.clone();
+            for(int i = 0; i < parents.length; i++){
+                members[next[roots[i]] ++] = i;
+            }
+        }
+    }
+
+    private void union(int a, int b){
+        //path halving while joining keeps trees flat; lookups don't modify anything
+        while(parents[a] != a){
+            a = parents[a] = parents[parents[a]];
+        }
+        while(parents[b] != b){
+            b = parents[b] = parents[parents[b]];
+        }
+        if(a == b) return;
+
+        if(sizes[a] < sizes[b]){
+            int t = a;
+            a = b;
+            b = t;
+        }
+
+        parents[b] = a;
+        sizes[a] += sizes[b];
+        majors[a] += majors[b];
+        largest = Math.max(largest, majors[a]);
+    }
+}
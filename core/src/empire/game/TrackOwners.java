@@ -0,0 +1,101 @@
+package empire.game;
+
+import empire.game.World.Tile;
+import io.anuke.arc.math.geom.Point2;
+
+import java.util.Arrays;
+
+/** Index of which players own each track, so that ownership checks don't have to go through every player.
+ * Owners are stored as bitmasks of player indices in {@link State#players}; this has to be rebuilt whenever
+ * players are replaced or removed, since that changes their indices.*/
+public class TrackOwners{
+    /** Owner bitmasks, indexed by tile index * 6 + direction ordinal.*/
+    private int[] edges = {};
+    private int width;
+
+    /** @return a copy of this index. */
+    public TrackOwners copy(){
+        TrackOwners out = new TrackOwners();
+        out.edges = edges.clone();
+        out.width = width;
+        return out;
+    }
+
+    /** Recalculates all owners from the tracks of every player.*/
+    public void rebuild(State state){
+        width = state.world.width;
+        int size = state.world.width * state.world.height * 6;
+        if(edges.length != size){
+            edges = new int[size];
+        }else{
+            Arrays.fill(edges, 0);
+        }
+
+        for(int i = 0; i < state.players.size; i++){
+            int player = i;
+            state.players.get(i).tracks.each((x, y, x2, y2) -> set(player, x, y, x2, y2, true));
+        }
+    }
+
+    /** Marks a track as owned by a player. Both directions are added.*/
+    public void add(int player, Tile from, Tile to){
+        set(player, from.x, from.y, to.x, to.y, true);
+        set(player, to.x, to.y, from.x, from.y, true);
+    }
+
+    /** Removes a player's ownership of a track. Both directions are removed.*/
+    public void remove(int player, Tile from, Tile to){
+        set(player, from.x, from.y, to.x, to.y, false);
+        set(player, to.x, to.y, from.x, from.y, false);
+    }
+
+    /** @return a bitmask of the indices of players that have track between these two tiles. */
+    public int owners(Tile from, Tile to){
+        int index = index(from.x, from.y, to.x, to.y);
+        return index == -1 ? 0 : edges[index];
+    }
+
+    /** @return a bitmask of the indices of players that have any track on this tile. */
+    public int owners(Tile tile){
+        if(tile.x >= width) return 0;
+
+        int base = (tile.x + tile.y * width) * 6;
+        if(base + 6 > edges.length) return 0;
+
+        return edges[base] | edges[base + 1] | edges[base + 2] | edges[base + 3] | edges[base + 4] | edges[base + 5];
+    }
+
+    /** @return the index of the first player that has track between these tiles, or -1 if there is none. */
+    public int first(Tile from, Tile to){
+        int owners = owners(from, to);
+        return owners == 0 ? -1 : Integer.numberOfTrailingZeros(owners);
+    }
+
+    private void set(int player, int x, int y, int x2, int y2, boolean owned){
+        int index = index(x, y, x2, y2);
+        if(index == -1 || player < 0) return;
+
+        if(owned){
+            edges[index] |= 1 << player;
+        }else{
+            edges[index] &= ~(1 << player);
+        }
+    }
+
+    /** @return the index of a directional edge, or -1 if these tiles aren't adjacent or out of bounds. */
+    private int index(int x, int y, int x2, int y2){
+        if(x < 0 || y < 0 || x >= width) return -1;
+
+        int base = (x + y * width) * 6;
+        if(base + 6 > edges.length) return -1;
+
+        int dx = x2 - x, dy = y2 - y;
+        Point2[] adjacent = y % 2 == 0 ? World.adjacencyEven : World.adjacencyOdd;
+        for(int i = 0; i < 6; i++){
+            if(adjacent[i].x == dx && adjacent[i].y == dy){
+                return base + i;
+            }
+        }
+        return -1;
+    }
+}
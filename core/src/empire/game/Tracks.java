@@ -3,27 +3,77 @@ package empire.game;
 import io.anuke.arc.collection.*;
 import io.anuke.arc.collection.LongMap.*;
 import io.anuke.arc.function.IntSegmentConsumer;
+import io.anuke.arc.math.geom.Point2;
 import io.anuke.arc.util.Pack;
+import io.anuke.arc.util.serialization.*;
 
-/** Data structure for storing and querying placed track.*/
-public class Tracks{
-    private LongMap<Void> map = new LongMap<>();
-    private IntIntMap used = new IntIntMap();
+/** Data structure for storing and querying placed track.
+ * Each tile has a bitmask of the directions it has track in, indexed by {@link Direction} ordinal.
+ * Links between tiles that aren't adjacent, such as ports, are stored separately.
+ * Only the tiles that have track are visited when iterating or clearing, so tracks sized for a whole world stay cheap.
+ * Serialized as a list of segments, which doesn't depend on the size of the world.*/
+public class Tracks implements Json.Serializable{
+    /** Version of the serialized format. Tracks without one were written reflectively, as a map of segments.*/
+    private static final int formatVersion = 1;
+
+    /** Direction bitmasks, indexed by x + y * width.*/
+    private byte[] masks = {};
+    private int width, height;
+    /** Indices of the tiles with a non-zero bitmask, in the order they got one.*/
+    private IntArray used = new IntArray();
+    /** Directional links between non-adjacent tiles; null if there are none.*/
+    private LongMap<Void> links;
+    /** Amount of non-adjacent links starting at each tile; null if there are none.*/
+    private IntIntMap linkCounts;
+    /** Incremented every time these tracks are modified.*/
+    private transient int version;
+
+    /** Creates tracks that grow to fit whatever is added to them.*/
+    public Tracks(){
+    }
+
+    /** Creates tracks sized for a world, so they never need to grow.*/
+    public Tracks(int width, int height){
+        resize(width, height);
+    }
 
     public void each(IntSegmentConsumer cons){
-        Entries entries = new Entries(map);
-        while(entries.hasNext){
-            long key = entries.next().key;
-            int start = Pack.leftInt(key), end = Pack.rightInt(key);
-            short x1 = Pack.leftShort(start), y1 = Pack.rightShort(start);
-            short x2 = Pack.leftShort(end), y2 = Pack.rightShort(end);
-            cons.accept(x1, y1, x2, y2);
+        for(int j = 0; j < used.size; j++){
+            int index = used.get(j), x = index % width, y = index / width;
+            Point2[] adjacent = adjacency(y);
+            int mask = masks[index];
+            for(int i = 0; mask != 0; i++, mask >>>= 1){
+                if((mask & 1) != 0){
+                    cons.accept(x, y, x + adjacent[i].x, y + adjacent[i].y);
+                }
+            }
+        }
+
+        if(links != null){
+            Entries entries = new Entries(links);
+            while(entries.hasNext){
+                long key = entries.next().key;
+                int start = Pack.leftInt(key), end = Pack.rightInt(key);
+                short x1 = Pack.leftShort(start), y1 = Pack.rightShort(start);
+                short x2 = Pack.leftShort(end), y2 = Pack.rightShort(end);
+                cons.accept(x1, y1, x2, y2);
+            }
         }
     }
 
     public void clear(){
-        map.clear();
+        for(int i = 0; i < used.size; i++){
+            masks[used.get(i)] = 0;
+        }
         used.clear();
+        links = null;
+        linkCounts = null;
+        version ++;
+    }
+
+    /** @return a counter that changes whenever these tracks are modified.*/
+    public int version(){
+        return version;
     }
 
     public void add(int x, int y, int x2, int y2){
@@ -35,18 +85,72 @@ public class Tracks{
         tracks.each(this::add);
     }
 
+    /** @return a copy of these tracks, with the same version. */
+    public Tracks copy(){
+        Tracks out = new Tracks();
+        out.set(this);
+        out.version = version;
+        return out;
+    }
+
     public void set(Tracks other){
-        clear();
-        map.putAll(other.map);
-        used.putAll(other.used);
+        if(width == other.width && height == other.height){
+            for(int i = 0; i < used.size; i++){
+                masks[used.get(i)] = 0;
+            }
+        }else{
+            width = other.width;
+            height = other.height;
+            masks = new byte[other.masks.length];
+        }
+
+        for(int i = 0; i < other.used.size; i++){
+            int index = other.used.get(i);
+            masks[index] = other.masks[index];
+        }
+        used.clear();
+        used.addAll(other.used);
+
+        if(other.links == null){
+            links = null;
+            linkCounts = null;
+        }else{
+            links = new LongMap<>();
+            linkCounts = new IntIntMap();
+            links.putAll(other.links);
+            linkCounts.putAll(other.linkCounts);
+        }
+        version ++;
     }
 
     private void addDirectional(int x, int y, int x2, int y2){
-        long link = hash(x, y, x2, y2);
-        if(!map.containsKey(link)){
-            map.put(link, null);
-            //increment links
-            used.getAndIncrement(hash(x, y), 0, 1);
+        int dir = direction(x, y, x2, y2);
+
+        if(dir == -1){
+            long link = hash(x, y, x2, y2);
+            if(links == null){
+                links = new LongMap<>();
+                linkCounts = new IntIntMap();
+            }
+            if(!links.containsKey(link)){
+                links.put(link, null);
+                linkCounts.getAndIncrement(hash(x, y), 0, 1);
+                version ++;
+            }
+            return;
+        }
+
+        if(x >= width || y >= height){
+            resize(Math.max(x + 1, width), Math.max(y + 1, height));
+        }
+
+        int index = x + y * width;
+        if((masks[index] & (1 << dir)) == 0){
+            if(masks[index] == 0){
+                used.add(index);
+            }
+            masks[index] |= 1 << dir;
+            version ++;
         }
     }
 
@@ -56,10 +160,25 @@ public class Tracks{
     }
 
     private void removeDirectional(int x, int y, int x2, int y2){
-        long link = hash(x, y, x2, y2);
-        if(map.containsKey(link)){
-            map.remove(link);
-            used.getAndIncrement(hash(x, y), 0, -1);
+        int dir = direction(x, y, x2, y2);
+
+        if(dir == -1){
+            long link = hash(x, y, x2, y2);
+            if(links != null && links.containsKey(link)){
+                links.remove(link);
+                linkCounts.getAndIncrement(hash(x, y), 0, -1);
+                version ++;
+            }
+            return;
+        }
+
+        int index = x + y * width;
+        if(x < width && y < height && (masks[index] & (1 << dir)) != 0){
+            masks[index] &= ~(1 << dir);
+            if(masks[index] == 0){
+                used.removeValue(index);
+            }
+            version ++;
         }
     }
 
@@ -68,11 +187,87 @@ public class Tracks{
     }
 
     public int connections(int x, int y){
-        return used.get(hash(x, y), 0);
+        int count = inBounds(x, y) ? Integer.bitCount(masks[x + y * width] & 0xff) : 0;
+        return linkCounts == null ? count : count + linkCounts.get(hash(x, y), 0);
     }
 
     public boolean has(int x, int y, int x2, int y2){
-        return map.containsKey(hash(x, y, x2, y2));
+        int dir = direction(x, y, x2, y2);
+        if(dir == -1){
+            return links != null && links.containsKey(hash(x, y, x2, y2));
+        }
+        return x < width && y < height && (masks[x + y * width] & (1 << dir)) != 0;
+    }
+
+    /** @return the direction index from the first tile to the second, or -1 if they aren't adjacent or
+     * the first tile can't be stored in the bitmasks. */
+    private int direction(int x, int y, int x2, int y2){
+        if(x < 0 || y < 0) return -1;
+
+        Point2[] adjacent = adjacency(y);
+        int dx = x2 - x, dy = y2 - y;
+        for(int i = 0; i < adjacent.length; i++){
+            if(adjacent[i].x == dx && adjacent[i].y == dy){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private Point2[] adjacency(int y){
+        return y % 2 == 0 ? World.adjacencyEven : World.adjacencyOdd;
+    }
+
+    private boolean inBounds(int x, int y){
+        return x >= 0 && y >= 0 && x < width && y < height;
+    }
+
+    private void resize(int newWidth, int newHeight){
+        byte[] resized = new byte[newWidth * newHeight];
+        for(int i = 0; i < used.size; i++){
+            int index = used.get(i), moved = index % width + index / width * newWidth;
+            resized[moved] = masks[index];
+            used.set(i, moved);
+        }
+        masks = resized;
+        width = newWidth;
+        height = newHeight;
+    }
+
+    @Override
+    public void write(Json json){
+        //every segment is stored in both directions, so only write the one starting at the lower tile
+        IntArray segments = new IntArray();
+        each((x, y, x2, y2) -> {
+            if(y < y2 || (y == y2 && x < x2)){
+                segments.addAll(x, y, x2, y2);
+            }
+        });
+
+        json.writeValue("version", formatVersion);
+        json.writeValue("segments", segments.toArray());
+    }
+
+    @Override
+    public void read(Json json, JsonValue data){
+        clear();
+
+        if(data.has("segments")){
+            int[] segments = data.get("segments").asIntArray();
+            for(int i = 0; i + 3 < segments.length; i += 4){
+                add(segments[i], segments[i + 1], segments[i + 2], segments[i + 3]);
+            }
+        }else if(data.has("map")){
+            //old saves: a reflectively written map, keyed by directional segment; empty slots hold 0
+            JsonValue keys = data.get("map").get("keyTable");
+            if(keys != null){
+                for(long key : keys.asLongArray()){
+                    if(key == 0) continue;
+                    int start = Pack.leftInt(key), end = Pack.rightInt(key);
+                    add(Pack.leftShort(start), Pack.rightShort(start), Pack.leftShort(end), Pack.rightShort(end));
+                }
+            }
+        }
     }
 
     private int hash(int x, int y){
@@ -1,12 +1,14 @@
 package empire.game;
 
-import empire.gfx.EmpireCore;
 import io.anuke.arc.collection.*;
 import io.anuke.arc.collection.ObjectMap.Values;
 import io.anuke.arc.function.Consumer;
+import io.anuke.arc.math.Mathf;
 import io.anuke.arc.math.geom.*;
 import io.anuke.arc.util.*;
 
+import static empire.gfx.EmpireCore.tilesize;
+
 /** Holds information about the game's world, such as tiles and their costs.*/
 public class World{
     /** Adjacent points for a tile.*/
@@ -40,6 +42,22 @@ public class World{
     /** Width and height of the world, in tiles.*/
     public final int width, height;
 
+    /** Static tile graph, built once on creation. The edges of tile i are the indices
+     * from edgeStart[i] (inclusive) to edgeStart[i + 1] (exclusive). Water tiles have no edges.*/
+    private final int[] edgeStart;
+    /** Destination tile index of each edge.*/
+    private final int[] edgeTargets;
+    /** Direction ordinal of each edge, or -1 for port links.*/
+    private final byte[] edgeDirections;
+    /** Base cost of building track along each edge, including water crossings.*/
+    private final int[] edgeCosts;
+    /** ID of the major city that each tile is part of, or -1.*/
+    private final int[] majorCityIDs;
+    /** Cities by ID.*/
+    private final City[] citiesByID;
+    /** Dense IDs of every good that a city supplies, in the order they first appear.*/
+    private final ObjectIntMap<String> goodIDs = new ObjectIntMap<>();
+
     public World(Tile[][] tiles, Array<City> cities, Array<River> rivers, Array<Lake> lakes, Array<Sea> seas){
         this.tiles = tiles;
         this.cities = new ObjectMap<>();
@@ -53,6 +71,147 @@ public class World{
         cities.each(c -> this.cities.put(c.name, c));
         //put each city into a tile so it's easy to access
         cities.each(c -> tiles[c.x][c.y].city = c);
+
+        int maxID = -1;
+        for(City city : cities){
+            maxID = Math.max(maxID, city.id);
+        }
+        citiesByID = new City[maxID + 1];
+        cities.each(c -> citiesByID[c.id] = c);
+
+        for(City city : cities){
+            for(String good : city.goods){
+                if(!goodIDs.containsKey(good)){
+                    goodIDs.put(good, goodIDs.size);
+                }
+            }
+        }
+
+        int size = width * height;
+        for(int i = 0; i < size; i++){
+            tile(i).index = i;
+        }
+
+        majorCityIDs = new int[size];
+        for(int i = 0; i < size; i++){
+            City city = findMajorCity(tile(i));
+            majorCityIDs[i] = city == null ? -1 : city.id;
+        }
+
+        //count edges first, so they can be stored in flat arrays
+        edgeStart = new int[size + 1];
+        for(int i = 0; i < size; i++){
+            int[] count = {0};
+            eachAdjacent(tile(i), (other, dir) -> count[0] ++);
+            edgeStart[i + 1] = edgeStart[i] + count[0];
+        }
+
+        edgeTargets = new int[edgeStart[size]];
+        edgeDirections = new byte[edgeStart[size]];
+        edgeCosts = new int[edgeStart[size]];
+
+        for(int i = 0; i < size; i++){
+            Tile tile = tile(i);
+            int[] edge = {edgeStart[i]};
+            eachAdjacent(tile, (other, dir) -> {
+                edgeTargets[edge[0]] = index(other);
+                edgeDirections[edge[0]] = (byte)dir;
+                edgeCosts[edge[0]] = baseTrackCost(tile, other);
+                edge[0] ++;
+            });
+        }
+    }
+
+    /** Iterates the static neighbours of a tile, along with the direction ordinal to them (-1 for ports).*/
+    private void eachAdjacent(Tile tile, IntTileConsumer cons){
+        //water has no connections
+        if(tile.type == Terrain.water){
+            return;
+        }
+
+        Point2[] adjacent = tile.getAdjacent();
+        for(int i = 0; i < adjacent.length; i++){
+            Tile other = tileOpt(tile.x + adjacent[i].x, tile.y + adjacent[i].y);
+            if(other != null && other.type != Terrain.water){
+                cons.accept(other, i);
+            }
+        }
+
+        //ports work both ways like rails
+        if(tile.port != null && (tile.port.from == tile)){
+            cons.accept(tile.port.to, -1);
+        }
+
+        if(tile.port != null && (tile.port.to == tile)){
+            cons.accept(tile.port.from, -1);
+        }
+    }
+
+    /** @return the first edge of a tile in the static tile graph. */
+    public int edgeStart(int index){
+        return edgeStart[index];
+    }
+
+    /** @return the end (exclusive) of a tile's edges in the static tile graph. */
+    public int edgeEnd(int index){
+        return edgeStart[index + 1];
+    }
+
+    /** @return the destination tile index of an edge. */
+    public int edgeTarget(int edge){
+        return edgeTargets[edge];
+    }
+
+    /** @return the direction ordinal of an edge, or -1 if it is a port link. */
+    public int edgeDirection(int edge){
+        return edgeDirections[edge];
+    }
+
+    /** @return the base cost of building track along an edge. */
+    public int edgeCost(int edge){
+        return edgeCosts[edge];
+    }
+
+    /** @return the edge between two tiles, or -1 if they aren't linked in the tile graph. */
+    public int edge(Tile from, Tile to){
+        int index = index(from), target = index(to);
+        for(int i = edgeStart[index]; i < edgeStart[index + 1]; i++){
+            if(edgeTargets[i] == target){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Returns the cost of building track from one tile to another.*/
+    public int trackCost(Tile from, Tile to){
+        int edge = edge(from, to);
+        return edge == -1 ? baseTrackCost(from, to) : edgeCosts[edge];
+    }
+
+    private int baseTrackCost(Tile from, Tile to){
+        //calculate base cost with (8!) nested ternary statements
+        int baseCost =
+            to.city != null ?
+                    (
+                    to.city.size == CitySize.small ? 3 :
+                    to.city.size == CitySize.medium ? 3 : 0
+                    ) :
+            sameCity(to, from) ? 0 :
+            getMajorCity(to) != null ? 1 :
+            to.port != null ? to.port.cost :
+            to.type == Terrain.plain ? 1 :
+            to.type == Terrain.mountain ? 2 :
+            to.type == Terrain.alpine ? 5 : 0;
+
+        if(from.crossings != null){
+            WaterCrossing cross = from.crossings.find(c -> c.to == to);
+            if(cross != null){
+                baseCost += cross.cost;
+            }
+        }
+
+        return baseCost;
     }
 
     /** Returns whether these two tiles are in the same major city.*/
@@ -67,6 +226,11 @@ public class World{
 
     /** Returns the major city that this tile is part of, or null.*/
     public City getMajorCity(Tile tile){
+        int id = majorCityIDs[index(tile)];
+        return id == -1 ? null : citiesByID[id];
+    }
+
+    private City findMajorCity(Tile tile){
         if(tile.city != null && tile.city.size == CitySize.major){
             return tile.city;
         }else{
@@ -91,7 +255,11 @@ public class World{
 
     /** Returns whether a tile is adjacent to another tile.*/
     public boolean isAdjacent(Tile from, Tile to){
-        return Structs.contains(from.getAdjacent(), p -> tileOpt(from.x + p.x, from.y + p.y) == to);
+        int dx = to.x - from.x, dy = to.y - from.y;
+        if(dy == 0) return dx == 1 || dx == -1;
+        if(dy != 1 && dy != -1) return false;
+        //rows are offset, so diagonal neighbours are shifted depending on the row
+        return from.y % 2 == 0 ? (dx == 0 || dx == -1) : (dx == 0 || dx == 1);
     }
 
     /** Returns the unique index of a tile.*/
@@ -126,6 +294,11 @@ public class World{
         return cities.get(name);
     }
 
+    /** Returns the ID of a good, from 0 up to the number of goods, or -1 if no city supplies it.*/
+    public int goodID(String good){
+        return goodIDs.get(good, -1);
+    }
+
     /** Returns a river by name. Throws an exception if not found.*/
     public River getRiver(String name){
         River river = rivers.find(r -> r.name.equals(name));
@@ -165,13 +338,8 @@ public class World{
                 //case 2: tracks between these two points
             }else if(player.hasTrack(tile, other)){
                 adjacent.accept(other);
-            }else if(otherPlayers){
-                for(Player otherplayer : state.players){
-                    if(otherplayer.hasTrack(tile, other)){
-                        adjacent.accept(other);
-                        break;
-                    }
-                }
+            }else if(otherPlayers && state.trackOwners().owners(tile, other) != 0){
+                adjacent.accept(other);
             }
         });
 
@@ -187,26 +355,14 @@ public class World{
 
     /** Iterates adjacent tiles to this tile, ignoring water and tiles that are out of bounds.*/
     public void adjacentsOf(Tile tile, Consumer<Tile> adjacent){
-        //water has no connections
-        if(tile.type == Terrain.water){
-            return;
-        }
-
-        for(Point2 point : tile.getAdjacent()){
-            Tile other = tileOpt(tile.x + point.x, tile.y + point.y);
-            if(other != null && other.type != Terrain.water){
-                adjacent.accept(other);
-            }
-        }
-
-        //ports work both ways like rails
-        if(tile.port != null && (tile.port.from == tile)){
-            adjacent.accept(tile.port.to);
+        int index = index(tile);
+        for(int i = edgeStart[index]; i < edgeStart[index + 1]; i++){
+            adjacent.accept(tile(edgeTargets[i]));
         }
+    }
 
-        if(tile.port != null && (tile.port.to == tile)){
-            adjacent.accept(tile.port.from);
-        }
+    private interface IntTileConsumer{
+        void accept(Tile tile, int value);
     }
 
     /** A single tile on the board.*/
@@ -223,6 +379,8 @@ public class World{
         public Array<WaterCrossing> crossings;
         /** Whether this tile is inland, e.g. 3 tiles from shore.*/
         public boolean inland = true, border = false;
+        /** The index of this tile in its world. Set when the world is created.*/
+        int index;
 
         public Tile(Terrain type, int x, int y){
             this.type = type;
@@ -242,10 +400,7 @@ public class World{
 
         /** Distance to a specific point in tile coordinates.*/
         public int distanceTo(int ox, int oy){
-            Vector2 v1 = EmpireCore.control.toWorld(this);
-            float vx = v1.x, vy = v1.y;
-            EmpireCore.control.toWorld(ox, oy);
-            return (int)(v1.dst(vx, vy) / 8);
+            return (int)(Mathf.dst(worldx(), worldy(), worldx(ox, oy), worldy(oy)) / 8);
         }
 
         public int distanceTo(Tile other){
@@ -264,12 +419,22 @@ public class World{
 
         /** Returns the X position in world coordinates.*/
         public float worldx(){
-            return EmpireCore.control.toWorld(this).x;
+            return worldx(x, y);
         }
 
         /** Returns the Y position in world coordinates.*/
         public float worldy(){
-            return EmpireCore.control.toWorld(this).y;
+            return worldy(y);
+        }
+
+        /** Returns the X position of a tile coordinate in world coordinates. Odd rows are offset by half a tile.*/
+        public static float worldx(int x, int y){
+            return x * tilesize + (y % 2) * tilesize / 2f;
+        }
+
+        /** Returns the Y position of a tile coordinate in world coordinates.*/
+        public static float worldy(int y){
+            return y * tilesize;
         }
 
         /** Returns the direction needed to travel from this tile to the other.
@@ -285,7 +450,7 @@ public class World{
         }
 
         public int index(){
-            return EmpireCore.state.world.index(this);
+            return index;
         }
 
         /** Returns a basic string representation of this object.*/
@@ -295,7 +460,7 @@ public class World{
 
         @Override
         public String toString(){
-            return EmpireCore.state.world.index(this) + "";
+            return index + "";
         }
     }
 
@@ -3,35 +3,52 @@ package empire.gfx;
 import empire.ai.CurrentAI.*;
 import empire.game.Player;
 import empire.game.World.Tile;
-import io.anuke.arc.collection.Array;
 import io.anuke.arc.graphics.Color;
 import io.anuke.arc.graphics.g2d.*;
 import io.anuke.arc.math.*;
 import io.anuke.arc.util.*;
 
+import java.util.Arrays;
+
 import static empire.gfx.EmpireCore.state;
 
 public class AIVisualizer implements AIListener{
-    private Array<VisPlan> plans = new Array<>();
-    private float displayed = 100;
+    /** Maximum number of plans displayed.*/
+    private static final int capacity = 100;
+
+    /** Ring buffer of the most recently considered plans; once full, the oldest plan is replaced.*/
+    private final VisPlan[] plans = new VisPlan[capacity];
+    /** Index of the oldest plan, and the number of plans in the buffer.*/
+    private int head, size;
 
     public AIVisualizer(){
 
     }
 
     public void draw(){
-        if(plans.isEmpty()) return;
+        if(size == 0) return;
 
-        int total = Math.min(plans.size - 1, (int)displayed);
+        VisPlan best = null;
+        for(int i = 0; i < size; i++){
+            VisPlan plan = plans[(head + i) % capacity];
+            if(best == null || plan.cost < best.cost){
+                best = plan;
+            }
+        }
+
+        //older plans are drawn first and fade out; the cheapest is drawn on top
+        for(int i = 0; i < size; i++){
+            VisPlan plan = plans[(head + i) % capacity];
+            if(plan == best) continue;
 
-        for(int i = total; i >= 0; i--){
-            VisPlan plan = plans.get(i);
             Tmp.c1.set(Color.GRAY);
-            Tmp.c1.a = 1f - ( i /(float)total);
+            Tmp.c1.a = (i + 1) / (float)size;
             plan.color.lerp(Tmp.c1, 0.1f * Time.delta());
 
-            drawPlan(plan, i == 0);
+            drawPlan(plan, false);
         }
+
+        drawPlan(best, true);
     }
 
     void drawPlan(VisPlan plan, boolean first){
@@ -87,20 +104,37 @@ public class AIVisualizer implements AIListener{
         Draw.rect("icon-open", x2 + Tmp.v1.x, y2 + Tmp.v1.y, angle - 90f);
     }
 
+    void clear(){
+        Arrays.fill(plans, null);
+        head = size = 0;
+    }
+
     @Override
     public void planningBegin(){
-        plans.clear();
+        clear();
     }
 
     @Override
     public void planConsidered(Plan plan, float cost){
-        plans.add(new VisPlan(plan, cost));
-        plans.sort();
+        if(size < capacity){
+            plans[(head + size++) % capacity] = new VisPlan(plan, cost);
+        }else{
+            plans[head] = new VisPlan(plan, cost);
+            head = (head + 1) % capacity;
+        }
+    }
+
+    @Override
+    public void plansConsidered(Plan[] batch, float[] costs){
+        //batches come cheapest first; add them in reverse so the cheapest plans are the newest
+        for(int i = batch.length - 1; i >= 0; i--){
+            planConsidered(batch[i], costs[i]);
+        }
     }
 
     @Override
     public void planChosen(Plan plan){
-        plans.clear();
+        clear();
     }
 
     class VisPlan implements Comparable<VisPlan>{
@@ -3,28 +3,74 @@ package empire.gfx;
 import empire.game.Actions.*;
 import empire.game.*;
 import empire.game.World.Tile;
+import empire.io.ActionIO;
 import empire.io.CardIO;
+import empire.net.Net;
 import empire.net.Net.NetListener;
+import io.anuke.arc.ApplicationListener;
 import io.anuke.arc.Events;
+import io.anuke.arc.collection.Array;
 import io.anuke.arc.collection.IntMap;
 import io.anuke.arc.collection.ObjectMap;
+import io.anuke.arc.collection.Queue;
 import io.anuke.arc.function.Consumer;
 import io.anuke.arc.graphics.Color;
 import io.anuke.arc.util.Log;
+import io.anuke.arc.util.Strings;
 import io.anuke.arc.util.reflect.ClassReflection;
 import io.anuke.arc.util.serialization.Json;
 import io.anuke.arc.util.serialization.Json.Serializer;
 import io.anuke.arc.util.serialization.JsonValue;
 
+import java.util.Random;
+
 import static empire.gfx.EmpireCore.*;
 
-/** Relays and handles actions.*/
-public class ActionRelay implements NetListener{
+/** Relays and handles actions.
+ * Outgoing actions are queued and sent at the end of each frame, so that everything done in a frame,
+ * such as moving along a path or placing a queue of track, goes out as a single message to each connection.
+ * The server numbers and logs the actions it sends to every client, so that a client that reconnects
+ * only needs the actions it missed instead of the whole state.*/
+public class ActionRelay implements NetListener, ApplicationListener{
+    /** The connection and game that actions are relayed for. These are separate from {@link EmpireCore}'s,
+     * so that a headless server can run several games at once.*/
+    private final Net net;
+    private final State state;
+
     private Json json = new Json();
+    private ActionIO binary = new ActionIO(json);
     private IntMap<Player> players = new IntMap<>();
     private ObjectMap<String, Class<?>> classMap = new ObjectMap<>();
+    /** Server: actions waiting to be sent to each connection that has connected.*/
+    private IntMap<Outbox> outboxes = new IntMap<>();
+    /** Client: actions waiting to be sent to the server. Switches to binary once the server answers in binary.*/
+    private Outbox outbox = new Outbox(0);
+
+    /** Server: identifies this game to reconnecting clients.*/
+    private long session = new Random().nextLong();
+    /** Server: number of actions sent to every client.*/
+    private int sequence;
+    /** Server: the last actions sent to every client, encoded in binary. Holds sequence numbers logStart + 1 to sequence.*/
+    private Queue<byte[]> log = new Queue<>();
+    private int logStart;
+
+    /** Client: game of the current state and number of the last action applied to it; -1 without a state from a server.*/
+    private long lastSession;
+    private int lastSequence = -1;
+    /** Client: local actions that were applied right away, but haven't come back from the server yet.*/
+    private int unconfirmed;
+    /** Client: whether nothing has been received since connecting.*/
+    private boolean joining;
+
+    /** Whether the binary protocol is offered when connecting and accepted when hosting. JSON is used otherwise.*/
+    public boolean binaryProtocol = true;
+    /** Most actions kept for reconnecting clients. Clients that missed more get the whole state instead.*/
+    public int logSize = 2048;
+
+    public ActionRelay(Net net, State state){
+        this.net = net;
+        this.state = state;
 
-    public ActionRelay(){
         //json.setElementType(Player.class, "drawEventCards", EventCard.class);
         //json.setElementType(Player.class, "eventCards", EventCard.class);
 
@@ -102,7 +148,16 @@ public class ActionRelay implements NetListener{
     }
 
     public void beginConnect(Connect connect, String host, Runnable connected, Consumer<Throwable> error){
+        outbox = new Outbox(0);
+        connect.protocol = binaryProtocol ? ActionIO.version : 0;
+        //catch up from the last action, unless there are local actions the server may never have received
+        connect.session = lastSession;
+        connect.sequence = unconfirmed == 0 ? lastSequence : -1;
+        unconfirmed = 0;
+        joining = true;
+
         net.connect(host, () -> {
+            //the server doesn't know the client's protocol yet, so this is always JSON
             net.send(write(connect));
             connected.run();
         }, error);
@@ -120,13 +175,14 @@ public class ActionRelay implements NetListener{
             ((AnyPlayerAction) action).playerID = state.players.indexOf(state.localPlayer());
         }
 
-        if(net.active()){
+        if(net != null && net.active()){
             //apply action locally; happens for server by default, but also for special local actions
             if(net.server() || action instanceof LocalAction){
                 applyAction(action);
+                if(!net.server()) unconfirmed ++;
             }
             //apply effect and send
-            net.send(write(action));
+            send(action);
         }else{
             //no net? just apply it
             applyAction(action);
@@ -134,10 +190,42 @@ public class ActionRelay implements NetListener{
     }
 
     public void applyAction(Action action){
-        Events.fire(action.getClass().isAnonymousClass() ? action.getClass().getSuperclass() : action.getClass(), action);
+        apply(action);
+        //planning threads only read snapshots, so the next one has to include this action
+        state.invalidateSnapshot();
+    }
+
+    /** Applies an action without invalidating the snapshot, for applying several at once.*/
+    private void apply(Action action){
+        //only the application's own game has listeners; rooms on other threads must not touch them
+        if(state.displayed){
+            Events.fire(ActionIO.type(action), action);
+        }
         action.apply(state);
     }
 
+    @Override
+    public void update(){
+        flush();
+    }
+
+    /** Sends all queued actions, as one message for each connection.*/
+    public void flush(){
+        if(net == null || !net.active()){
+            outbox.clear();
+            return;
+        }
+
+        if(net.server()){
+            for(IntMap.Entry<Outbox> entry : outboxes.entries()){
+                int connection = entry.key;
+                entry.value.flush(text -> net.send(connection, text), bytes -> net.send(connection, bytes));
+            }
+        }else{
+            outbox.flush(text -> net.send(text), bytes -> net.send(bytes));
+        }
+    }
+
     public String writeString(Object object){
         return json.toJson(object);
     }
@@ -149,17 +237,62 @@ public class ActionRelay implements NetListener{
     public void handleStateLoad(WorldSend send){
         if(net.active()){
             send.lastLocal = true;
-            net.send(EmpireCore.actions.write(send));
+            //nothing from before the load can be replayed
+            log.clear();
+            logStart = sequence;
+            send(send);
             if(!players.isEmpty()){
                 players.put(players.entries().next().key, send.players[send.players.length-1]);
             }
         }
     }
 
+    /** Queues an action for the server, or for every connected client when hosting.
+     * Actions are encoded right away, as they may refer to state that changes before they're sent.*/
+    private void send(Action action){
+        if(net.server()){
+            if(action instanceof WorldSend){
+                ((WorldSend)action).session = session;
+                ((WorldSend)action).sequence = sequence + 1;
+            }
+
+            //everything sent to all clients is logged, in binary as it's smaller
+            byte[] bytes = binary.write(action, state.world);
+            String text = null;
+            sequence ++;
+            log.addLast(bytes);
+            if(log.size > logSize){
+                log.removeFirst();
+                logStart ++;
+            }
+
+            //encode once for each protocol in use
+            for(Outbox out : outboxes.values()){
+                if(out.protocol == 0){
+                    if(text == null) text = write(action);
+                    out.text.add(text);
+                }else{
+                    out.bytes.add(bytes);
+                }
+            }
+        }else{
+            outbox.add(action);
+        }
+    }
+
     private String write(Action action){
         return className(action) + json.toJson(action);
     }
 
+    /** Reads every action of a text message, which may be a batch with one action per line.*/
+    private Array<Action> readAll(String text){
+        Array<Action> out = new Array<>();
+        for(String line : text.split("\n")){
+            out.add(read(line));
+        }
+        return out;
+    }
+
     private Action read(String str){
         int idx = str.indexOf('{');
         String name = str.substring(0, idx);
@@ -169,11 +302,7 @@ public class ActionRelay implements NetListener{
     }
 
     private String className(Action action){
-        Class<?> type = action.getClass();
-        if(action.getClass().isAnonymousClass()){
-            type = action.getClass().getSuperclass();
-        }
-        return ClassReflection.getSimpleName(type);
+        return ClassReflection.getSimpleName(ActionIO.type(action));
     }
 
     private Class<?> find(String name){
@@ -189,20 +318,56 @@ public class ActionRelay implements NetListener{
     @Override
     public void message(String txt){
         if(netDebug) Log.info("Client: received {0}", txt);
-        Action action = read(txt);
+        receive(readAll(txt));
+    }
 
-        //assign player to action
-        if(action instanceof PlayerAction){
-            ((PlayerAction) action).player = state.player();
+    @Override
+    public void message(byte[] bytes){
+        Array<Action> received = new Array<>();
+        binary.readAll(bytes, state.world, received);
+        if(netDebug) Log.info("Client: received {0} ({1} bytes)", received.toString(", ", this::className), bytes.length);
+
+        //the server only answers in binary if it accepted the offer made when connecting
+        if(outbox.protocol == 0){
+            flush();
+            outbox.protocol = ActionIO.version;
         }
+        receive(received);
+    }
 
-        //local actions have already been applied clientside, ignored htem
-        if(state.player().local && action instanceof LocalAction){
-            return;
+    /** Applies every action of a message in order.*/
+    private void receive(Array<Action> received){
+        //the server has a new player for this client, which it assigns after everything else in this message;
+        //until then, none of the actions being caught up on are this client's own
+        if(joining){
+            joining = false;
+            state.players.each(p -> p.local = false);
+        }
+
+        for(Action action : received){
+            if(action instanceof WorldSend){
+                lastSession = ((WorldSend)action).session;
+                lastSequence = ((WorldSend)action).sequence;
+            }else if(lastSequence != -1 && !(action instanceof AssignPlayer)){
+                lastSequence ++;
+            }
+
+            //assign player to action
+            if(action instanceof PlayerAction){
+                ((PlayerAction) action).player = state.player();
+            }
+
+            //local actions have already been applied clientside, ignored htem
+            if(state.player().local && action instanceof LocalAction){
+                unconfirmed = Math.max(unconfirmed - 1, 0);
+                continue;
+            }
+
+            //apply it
+            apply(action);
         }
 
-        //apply it
-        applyAction(action);
+        state.invalidateSnapshot();
     }
 
     @Override
@@ -214,6 +379,8 @@ public class ActionRelay implements NetListener{
 
     @Override
     public void disconnected(int connection){
+        outboxes.remove(connection);
+
         if(!players.containsKey(connection)){
             return; //nobody cares
         }
@@ -221,35 +388,81 @@ public class ActionRelay implements NetListener{
 
         state.reclaimCards(p);
         //send it out to everyone else first
-        net.send(write(new Disconnect(){{
+        send(new Disconnect(){{
             player = state.players.indexOf(p);
-        }}));
+        }});
 
         //only apply after it has been sent.
         state.players.remove(p);
+        state.updateTrackOwners();
         players.remove(connection);
 
         //prevent index out of bounds errors
-        state.currentPlayer %= state.players.size;
+        if(state.players.size > 0){
+            state.currentPlayer %= state.players.size;
+        }
+    }
+
+    @Override
+    public void resync(int connection){
+        Outbox out = outboxes.get(connection);
+        Player player = players.get(connection);
+        if(out == null || player == null) return;
+
+        Log.info("Resending state to connection {0}.", connection);
+        //anything still waiting has already been applied to the state that is sent
+        out.clear();
+        out.add(worldSend(state.players.indexOf(player, true)));
+    }
+
+    /** Creates a message with the whole game state.
+     * @param local index of the player that is local to the receiver, or -1 if it doesn't have one yet */
+    private WorldSend worldSend(int local){
+        return new WorldSend(){{
+            cards = state.cards.mapInt(c -> c.id);
+            players = state.players.toArray(Player.class);
+            currentPlayer = state.currentPlayer;
+            turn = state.turn;
+            localPlayer = local;
+            session = ActionRelay.this.session;
+            sequence = ActionRelay.this.sequence;
+        }};
     }
 
     @Override
     public void messsage(int connection, String text){
-        Action action = read(text);
+        receive(connection, readAll(text));
+    }
+
+    @Override
+    public void messsage(int connection, byte[] bytes){
+        Array<Action> received = new Array<>();
+        binary.readAll(bytes, state.world, received);
+        receive(connection, received);
+    }
+
+    private void receive(int connection, Array<Action> received){
         if(!players.containsKey(connection)){
-            if(!(action instanceof Connect)){
+            if(received.size != 1 || !(received.first() instanceof Connect)){
                 return; //first message MUST be a connect
             }
 
-            Connect connect = (Connect)action;
-
-            //write world state
-            net.send(connection, write(new WorldSend(){{
-                cards = state.cards.mapInt(c -> c.id);
-                players = state.players.toArray(Player.class);
-                currentPlayer = state.currentPlayer;
-                turn = state.turn;
-            }}));
+            Connect connect = (Connect)received.first();
+
+            //use the newest protocol that both sides support; everything from here on is sent in it
+            Outbox out = new Outbox(binaryProtocol ? Math.min(connect.protocol, ActionIO.version) : 0);
+            outboxes.put(connection, out);
+
+            if(connect.session == session && connect.sequence >= logStart && connect.sequence <= sequence){
+                //the client still has the state up to its last action, so it only needs what it missed
+                for(int i = connect.sequence - logStart; i < log.size; i++){
+                    out.addEncoded(log.get(i));
+                }
+                Log.info("Connection {0} rejoined, sending {1} missed actions.", connection, sequence - connect.sequence);
+            }else{
+                //write world state
+                out.add(worldSend(-1));
+            }
 
             //send forward message to everyone
             handle(new ConnectForward(){{
@@ -257,34 +470,96 @@ public class ActionRelay implements NetListener{
                 color = connect.color;
             }});
 
-            //last player must always be the one that was just added
-            state.players.peek().local = false;
-            players.put(connection, state.players.peek());
+            //last player must always be the one that was just added; only this client is told it's their own
+            int index = state.players.size - 1;
+            players.put(connection, state.players.get(index));
+            out.add(new AssignPlayer(){{
+                player = index;
+            }});
             if(netDebug) Log.info("Connection success: {0}//'{1}'", connection, connect.name);
         }else{
             Player player = players.get(connection);
-            if(action instanceof PlayerAction){
-                ((PlayerAction) action).player = player;
+
+            //actions are checked as they are applied, since any of them may end the turn, such as a move between ports;
+            //the first one that isn't allowed or fails stops the rest of the message, and since the sender has
+            //already applied its own local actions, it gets the whole state again
+            for(Action action : received){
+                if(action instanceof PlayerAction){
+                    ((PlayerAction) action).player = player;
+                }
+
+                if(action instanceof AnyPlayerAction){
+                    ((AnyPlayerAction) action).playerID = state.players.indexOf(player);
+                }
+
+                if(state.player() != player && !(action instanceof AnyPlayerAction)){
+                    Log.err("Player '{0}' just attempted to do an action not in their turn: {1}", player.name,
+                            className(action));
+                    resync(connection);
+                    break;
+                }
+
+                try{
+                    apply(action);
+                }catch(Exception e){
+                    Log.err("Action {0} of player '{1}' failed: {2}", className(action), player.name, Strings.parseException(e, false));
+                    resync(connection);
+                    break;
+                }
+
+                send(action);
+                if(netDebug) Log.info("Received packet from {0}: \n{1}", connection, json.prettyPrint(action));
             }
 
-            if(action instanceof AnyPlayerAction){
-                ((AnyPlayerAction) action).playerID = state.players.indexOf(player);
+            state.invalidateSnapshot();
+        }
+    }
+
+    /** Actions waiting to be sent to a single connection, already encoded in its protocol.*/
+    private class Outbox{
+        /** Protocol version of the connection, 0 being JSON.*/
+        int protocol;
+        final Array<String> text = new Array<>();
+        final Array<byte[]> bytes = new Array<>();
+
+        Outbox(int protocol){
+            this.protocol = protocol;
+        }
+
+        void add(Action action){
+            if(protocol == 0){
+                text.add(write(action));
+            }else{
+                bytes.add(binary.write(action, state.world));
             }
+        }
 
-            if(state.player() != player && !(action instanceof AnyPlayerAction)){
-                Log.err("Player '{0}' just attempted to do an action not in their turn: {1}", player.name,
-                        className(action));
-                return;
+        /** Adds an action that has already been encoded in binary.*/
+        void addEncoded(byte[] action){
+            if(protocol == 0){
+                text.add(write(binary.read(action, state.world)));
+            }else{
+                bytes.add(action);
             }
+        }
 
-            //apply action and send it out
-            try{
-                applyAction(action);
-                net.send(write(action));
-            }catch(Exception e){
-                e.printStackTrace();
+        /** Sends everything queued as at most one message per protocol, then clears the queue.*/
+        void flush(Consumer<String> sendText, Consumer<byte[]> sendBytes){
+            //JSON never contains raw line breaks, so batched text is one action per line
+            if(!text.isEmpty()){
+                sendText.accept(text.size == 1 ? text.first() : text.toString("\n"));
             }
-            if(netDebug) Log.info("Received packet from {0}: \n{1}", connection, json.prettyPrint(action));
+
+            if(!bytes.isEmpty()){
+                sendBytes.accept(bytes.size == 1 ? bytes.first() : binary.writeBatch(bytes));
+            }
+
+            clear();
+        }
+
+        void clear(){
+            text.clear();
+            bytes.clear();
         }
     }
 }
@@ -14,7 +14,7 @@ import static empire.gfx.EmpireCore.*;
 
 /** Handles user input.*/
 public class Control implements ApplicationListener{
-    private Astar astar = new Astar(null);
+    private Astar astar = new Astar(null, state);
     private Array<Tile[]> placement = new Array<>();
     private Tracks placementTracks = new Tracks();
     private Array<Tile> selectTiles = new Array<>();
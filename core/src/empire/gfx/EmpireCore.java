@@ -37,18 +37,21 @@ public class EmpireCore extends ApplicationCore{
     public void setup(){
         seeded = true;
 
+        createState();
+
         net = new WebsocketNet();
-        actions = new ActionRelay();
+        actions = new ActionRelay(net, state);
 
         net.setListener(actions);
 
-        createState();
-
         add(control = new Control());
         add(renderer = new Renderer());
         add(ui = new UI());
 
         createPlayer();
+
+        //added last, so that actions from everything else are sent in the same frame
+        add(actions);
     }
 
     void createPlayer(){
@@ -80,6 +83,7 @@ public class EmpireCore extends ApplicationCore{
                 new SimpleDateFormat("yyyy_MM_dd-HH|mm|ss").format(new Date()));
 
         state = new State();
+        state.displayed = true;
         state.world = MapIO.loadTiles(Core.files.internal("maps/eurorails.txt"));
         state.cards = CardIO.loadCards(state.world, Core.files.internal("maps/deck.txt"));
 
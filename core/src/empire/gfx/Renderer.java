@@ -303,7 +303,7 @@ public class Renderer implements ApplicationListener{
                 }else{
                     Draw.colorMul(player.color, 0.8f);
                 }
-                player.eachTrack((from, to) -> {
+                player.eachTrack(state.world, (from, to) -> {
                     if(state.world.index(from) < state.world.index(to)){
                         return;
                     }
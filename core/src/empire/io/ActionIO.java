@@ -0,0 +1,377 @@
+package empire.io;
+
+import empire.game.Actions.*;
+import empire.game.*;
+import empire.game.World.Tile;
+import io.anuke.arc.collection.Array;
+import io.anuke.arc.collection.IntArray;
+import io.anuke.arc.graphics.Color;
+import io.anuke.arc.collection.ObjectIntMap;
+import io.anuke.arc.util.serialization.Json;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/** Binary encoding of actions, used over the network instead of JSON when both sides support it.
+ * Every message starts with the numeric id of its action type. The actions sent most often have fixed layouts,
+ * with tiles written as varint indices; any other action is written as JSON after its id.
+ * {@link WorldSend} has a compact layout too, as it carries the whole game state, tracks included.
+ * Several encoded actions can be sent together in a batch, which has an id of its own.
+ * Not thread-safe, as a single output buffer is reused. */
+public class ActionIO{
+    /** Version of the binary protocol. Clients offer it when connecting; 0 means only JSON is supported.*/
+    public static final int version = 1;
+
+    /** Action types by id. Ids are sent over the network, so new types must only be added at the end.*/
+    private static final Class<?>[] types = {
+        Move.class, PlaceTrack.class, LoadCargo.class, SellCargo.class, EndTurn.class, Chat.class,
+        WorldSend.class, Connect.class, ConnectForward.class, Disconnect.class, ChooseStart.class,
+        DiscardCards.class, DumpCargo.class, UpgradeLoco.class, AssignPlayer.class
+    };
+    private static final ObjectIntMap<Class<?>> ids = new ObjectIntMap<>();
+    /** Id of a batch: a varint count, then each encoded action prefixed with its length. Out of the range of action types.*/
+    private static final int batchID = 127;
+
+    static{
+        for(int i = 0; i < types.length; i++){
+            ids.put(types[i], i);
+        }
+    }
+
+    /** Used for actions without a fixed layout.*/
+    private final Json json;
+    private byte[] bytes = new byte[64];
+    private int size;
+
+    public ActionIO(Json json){
+        this.json = json;
+    }
+
+    /** @return the type of an action, ignoring anonymous subclasses. */
+    public static Class<?> type(Action action){
+        Class<?> type = action.getClass();
+        return type.isAnonymousClass() ? type.getSuperclass() : type;
+    }
+
+    /** Encodes an action.
+     * @param world the world that tiles are indexed in */
+    public byte[] write(Action action, World world){
+        Class<?> type = type(action);
+        int id = ids.get(type, -1);
+        if(id == -1){
+            throw new IllegalArgumentException("Action type has no ID: " + type.getName());
+        }
+
+        size = 0;
+        writeVarint(id);
+
+        if(action instanceof Move){
+            writeTile(world, ((Move)action).to);
+        }else if(action instanceof PlaceTrack){
+            PlaceTrack place = (PlaceTrack)action;
+            writeTile(world, place.from);
+            writeTile(world, place.to);
+        }else if(action instanceof LoadCargo){
+            writeString(((LoadCargo)action).cargo);
+        }else if(action instanceof SellCargo){
+            writeString(((SellCargo)action).cargo);
+        }else if(action instanceof Chat){
+            Chat chat = (Chat)action;
+            writeVarint(chat.playerID);
+            writeString(chat.message);
+        }else if(action instanceof WorldSend){
+            writeWorld((WorldSend)action, world);
+        }else if(!(action instanceof EndTurn)){
+            writeBytes(json.toJson(action).getBytes(StandardCharsets.UTF_8));
+        }
+
+        return Arrays.copyOf(bytes, size);
+    }
+
+    /** Combines actions encoded by {@link #write(Action, World)} into a single message, to be applied in order.*/
+    public byte[] writeBatch(Array<byte[]> actions){
+        size = 0;
+        writeVarint(batchID);
+        writeVarint(actions.size);
+        for(byte[] action : actions){
+            writeVarint(action.length);
+            writeBytes(action);
+        }
+        return Arrays.copyOf(bytes, size);
+    }
+
+    /** Decodes an action written by {@link #write(Action, World)}.
+     * @param world the world that tiles are indexed in */
+    public Action read(byte[] data, World world){
+        return read(ByteBuffer.wrap(data), world);
+    }
+
+    /** Decodes every action in a message, which is either a single action or a batch.
+     * @param world the world that tiles are indexed in
+     * @param out actions are added here in order */
+    public void readAll(byte[] data, World world, Array<Action> out){
+        ByteBuffer in = ByteBuffer.wrap(data);
+        if(readVarint(in) != batchID){
+            out.add(read(data, world));
+            return;
+        }
+
+        int count = readVarint(in);
+        for(int i = 0; i < count; i++){
+            int length = readVarint(in);
+            int end = in.position() + length;
+            in.limit(end);
+            out.add(read(in, world));
+            in.limit(data.length);
+            in.position(end);
+        }
+    }
+
+    /** Decodes an action that ends at the limit of a buffer.*/
+    private Action read(ByteBuffer in, World world){
+        int id = readVarint(in);
+        if(id >= types.length){
+            throw new IllegalArgumentException("Unknown action ID: " + id);
+        }
+
+        Class<?> type = types[id];
+
+        if(type == Move.class){
+            Move move = new Move();
+            move.to = readTile(in, world);
+            return move;
+        }else if(type == PlaceTrack.class){
+            PlaceTrack place = new PlaceTrack();
+            place.from = readTile(in, world);
+            place.to = readTile(in, world);
+            return place;
+        }else if(type == LoadCargo.class){
+            LoadCargo load = new LoadCargo();
+            load.cargo = readString(in);
+            return load;
+        }else if(type == SellCargo.class){
+            SellCargo sell = new SellCargo();
+            sell.cargo = readString(in);
+            return sell;
+        }else if(type == Chat.class){
+            Chat chat = new Chat();
+            chat.playerID = readVarint(in);
+            chat.message = readString(in);
+            return chat;
+        }else if(type == EndTurn.class){
+            return new EndTurn();
+        }else if(type == WorldSend.class){
+            return readWorld(in, world);
+        }
+
+        return (Action)json.fromJson(type, new String(in.array(), in.position(), in.remaining(), StandardCharsets.UTF_8));
+    }
+
+    private void writeWorld(WorldSend send, World world){
+        writeLong(send.session);
+        writeVarint(send.sequence);
+        writeVarint(send.turn);
+        writeVarint(send.currentPlayer);
+        writeVarint(send.localPlayer + 1);
+        writeByte(send.lastLocal ? 1 : 0);
+
+        writeVarint(send.cards.size);
+        for(int i = 0; i < send.cards.size; i++){
+            writeVarint(send.cards.get(i));
+        }
+
+        writeVarint(send.players.length);
+        for(Player player : send.players){
+            writeString(player.name);
+            writeInt(player.color.rgba());
+            writeTile(world, player.position);
+            writeSigned(player.money);
+            writeVarint(player.moneySpent);
+            writeVarint(player.moved);
+            writeVarint(player.lostTurns);
+            writeByte(player.loco.ordinal());
+            writeByte(player.direction.ordinal());
+            writeByte(player.chosenLocation ? 1 : 0);
+
+            writeVarint(player.cargo.size);
+            for(String cargo : player.cargo){
+                writeString(cargo);
+            }
+
+            writeVarint(player.demandCards.length);
+            for(DemandCard card : player.demandCards){
+                writeVarint(card.id);
+            }
+
+            writeTracks(player.tracks, world);
+        }
+    }
+
+    private WorldSend readWorld(ByteBuffer in, World world){
+        WorldSend send = new WorldSend();
+        send.session = in.getLong();
+        send.sequence = readVarint(in);
+        send.turn = readVarint(in);
+        send.currentPlayer = readVarint(in);
+        send.localPlayer = readVarint(in) - 1;
+        send.lastLocal = in.get() != 0;
+
+        int cards = readVarint(in);
+        send.cards = new IntArray(cards);
+        for(int i = 0; i < cards; i++){
+            send.cards.add(readVarint(in));
+        }
+
+        send.players = new Player[readVarint(in)];
+        for(int i = 0; i < send.players.length; i++){
+            String name = readString(in);
+            Color color = new Color(in.getInt());
+            Tile position = readTile(in, world);
+            int money = readSigned(in);
+            int moneySpent = readVarint(in), moved = readVarint(in), lostTurns = readVarint(in);
+            Loco loco = Loco.values()[in.get()];
+            Direction direction = Direction.all[in.get()];
+            boolean chosenLocation = in.get() != 0;
+
+            Array<String> cargo = new Array<>();
+            for(int j = readVarint(in); j > 0; j--){
+                cargo.add(readString(in));
+            }
+
+            DemandCard[] demandCards = new DemandCard[readVarint(in)];
+            for(int j = 0; j < demandCards.length; j++){
+                demandCards[j] = (DemandCard)CardIO.cardsByID[readVarint(in)];
+            }
+
+            Player player = new Player(name, position, color, demandCards);
+            player.money = money;
+            player.moneySpent = moneySpent;
+            player.moved = moved;
+            player.lostTurns = lostTurns;
+            player.loco = loco;
+            player.direction = direction;
+            player.chosenLocation = chosenLocation;
+            player.cargo = cargo;
+            player.tracks = new Tracks(world.width, world.height);
+            readTracks(in, world, player.tracks);
+            send.players[i] = player;
+        }
+
+        return send;
+    }
+
+    /** Writes each track segment once, as the index of its first tile and the number of the edge it follows from there.
+     * Numbers past the tile's edge count are an index of the second tile instead, for segments that don't follow an edge.*/
+    private void writeTracks(Tracks tracks, World world){
+        //tracks store every segment in both directions
+        int[] count = {0};
+        tracks.each((x, y, x2, y2) -> {
+            if(x + y * world.width < x2 + y2 * world.width) count[0] ++;
+        });
+        writeVarint(count[0]);
+
+        tracks.each((x, y, x2, y2) -> {
+            int from = x + y * world.width, to = x2 + y2 * world.width;
+            if(from >= to) return;
+
+            int start = world.edgeStart(from), end = world.edgeEnd(from), edge = start;
+            while(edge < end && world.edgeTarget(edge) != to){
+                edge ++;
+            }
+
+            writeVarint(from);
+            writeVarint(edge < end ? edge - start : end - start + to);
+        });
+    }
+
+    private void readTracks(ByteBuffer in, World world, Tracks tracks){
+        for(int i = readVarint(in); i > 0; i--){
+            int from = readVarint(in), edge = readVarint(in);
+            int start = world.edgeStart(from), degree = world.edgeEnd(from) - start;
+            int to = edge < degree ? world.edgeTarget(start + edge) : edge - degree;
+            tracks.add(from % world.width, from / world.width, to % world.width, to / world.width);
+        }
+    }
+
+    private void writeTile(World world, Tile tile){
+        writeVarint(world.index(tile));
+    }
+
+    private Tile readTile(ByteBuffer in, World world){
+        return world.tile(readVarint(in));
+    }
+
+    private void writeString(String string){
+        byte[] data = string.getBytes(StandardCharsets.UTF_8);
+        writeVarint(data.length);
+        writeBytes(data);
+    }
+
+    private String readString(ByteBuffer in){
+        int length = readVarint(in);
+        String out = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return out;
+    }
+
+    /** Writes a number that may be negative, as a varint of its zigzag encoding.*/
+    private void writeSigned(int value){
+        writeVarint((value << 1) ^ (value >> 31));
+    }
+
+    private int readSigned(ByteBuffer in){
+        int value = readVarint(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private void writeInt(int value){
+        ensureCapacity(4);
+        for(int i = 3; i >= 0; i--){
+            bytes[size++] = (byte)(value >>> (i * 8));
+        }
+    }
+
+    private void writeLong(long value){
+        writeInt((int)(value >>> 32));
+        writeInt((int)value);
+    }
+
+    /** Writes a non-negative number in 7-bit groups, lowest first. Values below 128 take a single byte.*/
+    private void writeVarint(int value){
+        while((value & ~0x7f) != 0){
+            writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        writeByte(value);
+    }
+
+    private int readVarint(ByteBuffer in){
+        int value = 0;
+        for(int shift = 0; shift < 32; shift += 7){
+            int b = in.get();
+            value |= (b & 0x7f) << shift;
+            if((b & 0x80) == 0){
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint.");
+    }
+
+    private void writeByte(int value){
+        ensureCapacity(1);
+        bytes[size++] = (byte)value;
+    }
+
+    private void writeBytes(byte[] data){
+        ensureCapacity(data.length);
+        System.arraycopy(data, 0, bytes, size, data.length);
+        size += data.length;
+    }
+
+    private void ensureCapacity(int amount){
+        if(size + amount > bytes.length){
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + amount));
+        }
+    }
+}
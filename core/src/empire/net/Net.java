@@ -10,6 +10,8 @@ public abstract class Net{
 
     protected Consumer<Throwable> errorHandler = Throwable::printStackTrace;
     protected NetListener listener;
+    /** Runs callbacks from network threads on the thread that owns the game; the application's main thread by default.*/
+    protected Consumer<Runnable> poster = run -> Core.app.post(run);
 
     public void setListener(NetListener listener){
         this.listener = listener;
@@ -19,6 +21,10 @@ public abstract class Net{
         this.errorHandler = handler;
     }
 
+    public void setPoster(Consumer<Runnable> poster){
+        this.poster = poster;
+    }
+
     /** Whether the client is currently connecting.*/
     public abstract boolean connecting();
 
@@ -36,32 +42,55 @@ public abstract class Net{
     /** Client: Connects to an IP asynchronously. Calls either the success or error callbacks. */
     public abstract void connect(String host, Runnable success, Consumer<Throwable> error);
 
-    /** Server: Starts hosting. */
-    public abstract void host();
+    /** Server: Starts hosting on the default port. */
+    public void host(){
+        host(port);
+    }
+
+    /** Server: Starts hosting on a specific port. */
+    public abstract void host(int port);
 
     /** Server: sends a packet to a specific connection ID. */
     public abstract void send(int connection, String text);
 
+    /** Server: sends a binary packet to a specific connection ID. */
+    public abstract void send(int connection, byte[] bytes);
+
     /** If client, sends the specified text to the server.
      * If server, sends the specified text to all connected clients.*/
     public abstract void send(String text);
 
+    /** If client, sends the specified bytes to the server.
+     * If server, sends the specified bytes to all connected clients.*/
+    public abstract void send(byte[] bytes);
+
     /** Server: stops hosting.
      * Client: disconnects.*/
     public abstract void close();
 
     protected void handleError(Throwable t){
-        Core.app.post(() -> errorHandler.accept(t));
+        post(() -> errorHandler.accept(t));
+    }
+
+    /** Runs something on the thread that owns the game.*/
+    protected void post(Runnable run){
+        poster.accept(run);
     }
 
     public interface NetListener{
         /** Server: Called when a message is sent from a client ID.*/
         void messsage(int connection, String text);
+        /** Server: Called when a binary message is sent from a client ID.*/
+        void messsage(int connection, byte[] bytes);
         /** Server: Called when a client disconnects from this server.*/
         void disconnected(int connection);
+        /** Server: Called when messages to a client were dropped, so the whole state must be sent to it again.*/
+        void resync(int connection);
 
         /** Client: called when a message is recieved.*/
         void message(String txt);
+        /** Client: called when a binary message is recieved.*/
+        void message(byte[] bytes);
         /** Client: called on server disconnect.*/
         void disconnected(Throwable reason);
     }
@@ -0,0 +1,195 @@
+package empire.net;
+
+import io.anuke.arc.function.Consumer;
+import io.anuke.arc.util.*;
+import org.java_websocket.WebSocket;
+import org.java_websocket.WebSocketImpl;
+import org.java_websocket.client.WebSocketClient;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import static empire.gfx.EmpireCore.netDebug;
+
+/** Messages waiting to be sent to a single socket. Filled from any thread and handed to the socket on an I/O executor,
+ * so a slow connection never blocks the thread that sends to it. Also keeps send statistics of the connection.
+ * The socket library never blocks and buffers whatever it's given without limit, so messages are only handed over
+ * while the socket has fewer than {@link #socketWindow} frames left to write. Everything else waits here and counts
+ * towards the capacity, which makes a connection that can't keep up overflow instead of growing the library's buffer.*/
+public class SendQueue{
+    /** Most messages written at once, so that busy connections take turns on the executor.*/
+    private static final int drainBatch = 64;
+    /** Most frames the socket may hold that it hasn't written yet before messages are kept here instead.*/
+    private static final int socketWindow = 16;
+    /** Time to wait before trying again when the socket is still full, in milliseconds.*/
+    private static final long retryDelay = 2;
+    private static final float nanosPerMilli = 1000000f;
+
+    private final WebSocket socket;
+    private final ScheduledExecutorService executor;
+    private final int capacity;
+    private final Consumer<SendQueue> overflow;
+
+    private final ConcurrentLinkedQueue<Message> messages = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    /** Set after an overflow; messages are dropped until {@link #resume()} is called.*/
+    private volatile boolean dropping;
+
+    private final AtomicInteger maxDepth = new AtomicInteger();
+    private final AtomicLong sent = new AtomicLong(), dropped = new AtomicLong();
+    /** Time between queueing messages and handing them to the socket, in nanoseconds.*/
+    private final AtomicLong totalLatency = new AtomicLong(), maxLatency = new AtomicLong();
+
+    /** @param capacity most messages that can wait at once
+     * @param overflow called on the sending thread when a message doesn't fit; everything queued has been dropped by then */
+    public SendQueue(WebSocket socket, ScheduledExecutorService executor, int capacity, Consumer<SendQueue> overflow){
+        this.socket = socket;
+        this.executor = executor;
+        this.capacity = capacity;
+        this.overflow = overflow;
+    }
+
+    /** Queues a message, which is either a String or a byte array.*/
+    public void offer(Object data){
+        if(dropping){
+            dropped.incrementAndGet();
+            return;
+        }
+
+        int size = depth.incrementAndGet();
+        if(size > capacity){
+            depth.decrementAndGet();
+            dropped.incrementAndGet();
+            dropping = true;
+            clear();
+            overflow.accept(this);
+            return;
+        }
+
+        maxDepth.accumulateAndGet(size, Math::max);
+        messages.add(new Message(data, Time.nanos()));
+
+        if(draining.compareAndSet(false, true)){
+            executor.execute(this::drain);
+        }
+    }
+
+    /** Accepts messages again after an overflow. The receiver should be sent everything that was dropped first.*/
+    public void resume(){
+        dropping = false;
+    }
+
+    /** Drops every queued message.*/
+    public void clear(){
+        while(messages.poll() != null){
+            depth.decrementAndGet();
+            dropped.incrementAndGet();
+        }
+    }
+
+    private void drain(){
+        Message message;
+        int written = 0;
+        boolean full = false;
+
+        while(written < drainBatch){
+            //the socket hasn't caught up; leave the rest here, where it counts towards the capacity
+            if(buffered() >= socketWindow){
+                full = true;
+                break;
+            }
+
+            if((message = messages.poll()) == null) break;
+            depth.decrementAndGet();
+
+            try{
+                if(message.data instanceof String){
+                    socket.send((String)message.data);
+                }else{
+                    socket.send((byte[])message.data);
+                }
+            }catch(Exception e){
+                //the socket has closed; nothing else can be sent
+                if(netDebug) Log.info("Failed to send message: {0}", Strings.parseException(e, false));
+                clear();
+                break;
+            }
+
+            long latency = Time.timeSinceNanos(message.time);
+            sent.incrementAndGet();
+            totalLatency.addAndGet(latency);
+            maxLatency.accumulateAndGet(latency, Math::max);
+            written ++;
+        }
+
+        draining.set(false);
+
+        //more messages may have arrived after the last poll, the batch limit was reached, or the socket is full
+        if(!messages.isEmpty() && draining.compareAndSet(false, true)){
+            if(full){
+                executor.schedule(this::drain, retryDelay, TimeUnit.MILLISECONDS);
+            }else{
+                executor.execute(this::drain);
+            }
+        }
+    }
+
+    /** @return the amount of frames that the socket has been given but hasn't written yet. */
+    public int buffered(){
+        WebSocket connection = socket instanceof WebSocketClient ? ((WebSocketClient)socket).getConnection() : socket;
+        if(connection instanceof WebSocketImpl){
+            return ((WebSocketImpl)connection).outQueue.size();
+        }
+        //without a count, any buffered data means the socket is behind
+        return connection != null && connection.hasBufferedData() ? socketWindow : 0;
+    }
+
+    /** @return the amount of messages waiting to be handed to the socket. */
+    public int depth(){
+        return depth.get();
+    }
+
+    /** @return the most messages that have waited at once. */
+    public int maxDepth(){
+        return maxDepth.get();
+    }
+
+    /** @return the amount of messages that have been handed to the socket. */
+    public long sent(){
+        return sent.get();
+    }
+
+    /** @return the amount of messages dropped because of overflows or a closed socket. */
+    public long dropped(){
+        return dropped.get();
+    }
+
+    /** @return the average time between queueing a message and handing it to the socket, in milliseconds. */
+    public float averageLatency(){
+        long count = sent.get();
+        return count == 0 ? 0f : totalLatency.get() / (float)count / nanosPerMilli;
+    }
+
+    /** @return the longest time between queueing a message and handing it to the socket, in milliseconds. */
+    public float maxLatency(){
+        return maxLatency.get() / nanosPerMilli;
+    }
+
+    @Override
+    public String toString(){
+        return Strings.format("depth {0} (max {1}), {2} buffered, {3} sent, {4} dropped, latency {5}ms (max {6}ms)",
+                depth(), maxDepth(), buffered(), sent(), dropped(), averageLatency(), maxLatency());
+    }
+
+    private static class Message{
+        final Object data;
+        /** When the message was queued, in nanoseconds.*/
+        final long time;
+
+        Message(Object data, long time){
+            this.data = data;
+            this.time = time;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package empire.net;
+
+import empire.game.*;
+import empire.gfx.ActionRelay;
+import io.anuke.arc.collection.Array;
+import io.anuke.arc.util.*;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/** A game hosted without graphics, as an authoritative server with no local player.
+ * Everything from network threads is queued and run on the room's own thread, so actions are applied
+ * one at a time in the order they arrive. Several rooms can run in one process, each on its own port.
+ * Rooms only use their own state and relay; their states aren't {@link State#displayed}, so nothing global is touched.*/
+public class ServerRoom{
+    /** Longest time the game loop waits for messages before sending anything queued, in milliseconds.*/
+    private static final long maxWait = 50;
+
+    public final String name;
+    public final int port;
+    public final State state;
+    public final WebsocketNet net;
+    public final ActionRelay relay;
+
+    /** Work posted from network threads, run by the game loop.*/
+    private final ConcurrentLinkedQueue<Runnable> inbound = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private volatile boolean running;
+
+    /** Creates a room with a freshly shuffled deck.
+     * @param world shared between rooms, as it's never modified
+     * @param deck unshuffled cards, shared between rooms */
+    public ServerRoom(String name, int port, World world, Array<Card> deck){
+        this.name = name;
+        this.port = port;
+
+        state = new State();
+        state.world = world;
+        state.cards = new Array<>(deck);
+        state.cards.shuffle();
+
+        net = new WebsocketNet();
+        net.setPoster(this::post);
+        net.setErrorHandler(e -> Log.err("[{0}] {1}", name, Strings.parseException(e, true)));
+        relay = new ActionRelay(net, state);
+        net.setListener(relay);
+
+        thread = new Thread(this::run, "Room " + name);
+    }
+
+    /** Starts the game loop and begins accepting connections.*/
+    public void start(){
+        running = true;
+        thread.start();
+        post(() -> {
+            net.host(port);
+            Log.info("[{0}] Hosting on port {1}.", name, port);
+        });
+    }
+
+    /** Stops the game loop, which closes the server once it has finished what's queued.*/
+    public void stop(){
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    /** Blocks until the game loop has stopped.*/
+    public void join() throws InterruptedException{
+        thread.join();
+    }
+
+    /** Runs something on the game loop. Can be called from any thread.*/
+    public void post(Runnable run){
+        inbound.add(run);
+        LockSupport.unpark(thread);
+    }
+
+    private void run(){
+        while(running){
+            Runnable run;
+            while((run = inbound.poll()) != null){
+                try{
+                    run.run();
+                }catch(Throwable t){
+                    Log.err("[{0}] Error in game loop:\n{1}", name, Strings.parseException(t, true));
+                }
+            }
+
+            //everything handled in one pass goes out together, like a frame on a client
+            relay.flush();
+
+            if(inbound.isEmpty()){
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(maxWait));
+            }
+        }
+
+        net.close();
+        Log.info("[{0}] Closed.", name);
+    }
+}
@@ -1,6 +1,5 @@
 package empire.net;
 
-import io.anuke.arc.Core;
 import io.anuke.arc.collection.IntMap;
 import io.anuke.arc.collection.ObjectIntMap;
 import io.anuke.arc.function.Consumer;
@@ -16,11 +15,22 @@ import org.java_websocket.server.WebSocketServer;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.URI;
-import java.util.concurrent.TimeUnit;
+import java.nio.ByteBuffer;
+import java.util.concurrent.*;
 
 import static empire.gfx.EmpireCore.netDebug;
 
 public class WebsocketNet extends Net{
+    /** Number of threads that write messages to sockets, shared by every instance.*/
+    private static final int ioThreads = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+    /** Hands queued messages to sockets and connects clients, so that neither blocks the game.
+     * Shared, so that hosting many games in one process doesn't need threads for each.*/
+    private static final ScheduledExecutorService executor = Executors.newScheduledThreadPool(ioThreads, run -> {
+        Thread thread = new Thread(run, "Net I/O");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     InternalServer server;
     InternalClient client;
 
@@ -29,6 +39,17 @@ public class WebsocketNet extends Net{
     IntMap<WebSocket> clients = new IntMap<>();
     ObjectIntMap<WebSocket> clientsIds = new ObjectIntMap<>();
 
+    /** Messages waiting to be sent to each client, or to the server.
+     * Connections are registered on the posting thread, but statistics may be read from any thread.*/
+    ConcurrentHashMap<Integer, SendQueue> queues = new ConcurrentHashMap<>();
+    SendQueue clientQueue;
+
+    /** Most messages that may wait to be sent to a single connection before the overflow policy applies.*/
+    public int maxQueued = 1024;
+    /** What the server does with a client that falls too far behind.
+     * Clients always disconnect from a server that they can't keep up with.*/
+    public OverflowPolicy overflowPolicy = OverflowPolicy.resync;
+
     Runnable success;
     Consumer<Throwable> error;
 
@@ -56,19 +77,24 @@ public class WebsocketNet extends Net{
 
         try{
             connecting = true;
-            client = new InternalClient(new URI("ws://" + host + ":" + port));
-            async(() -> {
+            InternalClient socket = client = new InternalClient(new URI("ws://" + host + ":" + port));
+            clientQueue = new SendQueue(socket, executor, maxQueued, queue -> {
+                Log.err("Messages to the server are backed up, disconnecting. {0}", queue);
+                socket.close(CloseFrame.POLICY_VALIDATION, "Send queue full");
+            });
+
+            executor.execute(() -> {
                 try{
-                    client.connectBlocking(1000, TimeUnit.MILLISECONDS);
+                    socket.connectBlocking(1000, TimeUnit.MILLISECONDS);
                     connecting = false;
                 }catch(Exception e){
                     connecting = false;
-                    Core.app.post(() -> error.accept(e));
+                    post(() -> error.accept(e));
                 }
             });
         }catch(Exception e){
             connecting = false;
-            Core.app.post(() -> error.accept(e));
+            post(() -> error.accept(e));
         }
     }
 
@@ -79,10 +105,25 @@ public class WebsocketNet extends Net{
         if(netDebug) Log.info("{0}: SEND '{1}'", server() ? "SERVER" : "CLIENT", text);
 
         if(client()){
-            client.send(text);
+            clientQueue.offer(text);
         }else{
-            for(WebSocket socket : server.getConnections()){
-                socket.send(text);
+            for(SendQueue queue : queues.values()){
+                queue.offer(text);
+            }
+        }
+    }
+
+    @Override
+    public void send(byte[] bytes){
+        if(!active()) throw new IllegalArgumentException("Net isn't ready yet!");
+
+        if(netDebug) Log.info("{0}: SEND {1} bytes", server() ? "SERVER" : "CLIENT", bytes.length);
+
+        if(client()){
+            clientQueue.offer(bytes);
+        }else{
+            for(SendQueue queue : queues.values()){
+                queue.offer(bytes);
             }
         }
     }
@@ -101,12 +142,18 @@ public class WebsocketNet extends Net{
             Log.info("Error closing server:\n{0}", Strings.parseException(e, true));
         }
 
+        for(SendQueue queue : queues.values()){
+            queue.clear();
+        }
+
         client = null;
         server = null;
+        clientQueue = null;
+        queues.clear();
     }
 
     @Override
-    public void host(){
+    public void host(int port){
         close();
 
         server = new InternalServer(new InetSocketAddress(port));
@@ -119,13 +166,34 @@ public class WebsocketNet extends Net{
 
         if(netDebug) Log.info("SERVER: SEND TO {0}: '{1}'", connection, text);
 
-        clients.get(connection).send(text);
+        queues.get(connection).offer(text);
     }
 
-    private void async(Runnable run){
-        new Thread(run){{
-            setDaemon(true);
-        }}.start();
+    @Override
+    public void send(int connection, byte[] bytes){
+        if(server == null) throw new IllegalArgumentException("Server isn't ready yet!");
+
+        if(netDebug) Log.info("SERVER: SEND TO {0}: {1} bytes", connection, bytes.length);
+
+        queues.get(connection).offer(bytes);
+    }
+
+    /** Server: @return the messages waiting to be sent to a connection, along with its send statistics. */
+    public SendQueue queue(int connection){
+        return queues.get(connection);
+    }
+
+    /** Client: @return the messages waiting to be sent to the server, along with their send statistics. */
+    public SendQueue queue(){
+        return clientQueue;
+    }
+
+    /** What to do when messages to a client back up past {@link #maxQueued}.*/
+    public enum OverflowPolicy{
+        /** Drop the queued messages and have the listener send the whole state again.*/
+        resync,
+        /** Close the connection.*/
+        disconnect
     }
 
     public class InternalServer extends WebSocketServer{
@@ -141,11 +209,13 @@ public class WebsocketNet extends Net{
 
         @Override
         public void onClose(WebSocket conn, int code, String reason, boolean remote){
-            Core.app.post(() -> {
+            post(() -> {
                 if(clientsIds.containsKey(conn)){
                     int id = clientsIds.get(conn, 0);
                     clientsIds.remove(conn, 0);
                     clients.remove(id);
+                    SendQueue queue = queues.remove(id);
+                    if(queue != null) queue.clear();
                     listener.disconnected(id);
                 }
             });
@@ -153,16 +223,43 @@ public class WebsocketNet extends Net{
 
         @Override
         public void onMessage(WebSocket conn, String message){
-            Core.app.post(() -> {
-                if(!clientsIds.containsKey(conn)){
-                    int id = lastClientID ++;
-                    clients.put(id, conn);
-                    clientsIds.put(conn, id);
-                }
+            post(() -> listener.messsage(id(conn), message));
+        }
 
-                int id = clientsIds.get(conn, 0);
-                listener.messsage(id, message);
-            });
+        @Override
+        public void onMessage(WebSocket conn, ByteBuffer message){
+            byte[] bytes = new byte[message.remaining()];
+            message.get(bytes);
+            post(() -> listener.messsage(id(conn), bytes));
+        }
+
+        /** @return the ID of a connection, assigning one if this is its first message. Only called on the posting thread.*/
+        private int id(WebSocket conn){
+            if(!clientsIds.containsKey(conn)){
+                int id = lastClientID ++;
+                clients.put(id, conn);
+                clientsIds.put(conn, id);
+                queues.put(id, new SendQueue(conn, executor, maxQueued, queue -> overflow(id, conn, queue)));
+            }
+
+            return clientsIds.get(conn, 0);
+        }
+
+        /** Called on the sending thread when messages to a client back up.*/
+        private void overflow(int id, WebSocket conn, SendQueue queue){
+            Log.warn("Messages to connection {0} are backed up: {1}", id, queue);
+
+            if(overflowPolicy == OverflowPolicy.disconnect){
+                conn.close(CloseFrame.POLICY_VALIDATION, "Send queue full");
+            }else{
+                post(() -> {
+                    //the client may have left in the meantime
+                    if(queues.get(id) == queue){
+                        queue.resume();
+                        listener.resync(id);
+                    }
+                });
+            }
         }
 
         @Override
@@ -184,18 +281,25 @@ public class WebsocketNet extends Net{
 
         @Override
         public void onOpen(ServerHandshake handshakedata){
-            Core.app.post(success);
+            post(success);
         }
 
         @Override
         public void onMessage(String message){
-            Core.app.post(() -> listener.message(message));
+            post(() -> listener.message(message));
+        }
+
+        @Override
+        public void onMessage(ByteBuffer message){
+            byte[] bytes = new byte[message.remaining()];
+            message.get(bytes);
+            post(() -> listener.message(bytes));
         }
 
         @Override
         public void onClose(int code, String reason, boolean remote){
-            Core.app.post(() -> error.accept(new IOException((reason == null || reason.isEmpty()) ? parseCode(code) : reason)));
-            Core.app.post(() -> listener.disconnected(new IOException(reason)));
+            post(() -> error.accept(new IOException((reason == null || reason.isEmpty()) ? parseCode(code) : reason)));
+            post(() -> listener.disconnected(new IOException(reason)));
             close();
         }
 
@@ -0,0 +1,57 @@
+package empire.ai;
+
+import empire.ai.CurrentAI.Candidate;
+import empire.game.*;
+import io.anuke.arc.collection.Array;
+import io.anuke.arc.files.FileHandle;
+import io.anuke.arc.util.Log;
+import io.anuke.arc.util.Log.NoopLogHandler;
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+/** Checks that replanning incrementally after the game has gone on chooses the same plan as a full replan.*/
+public class IncrementalTest{
+    private static final long[] seeds = {1, 2, 3};
+
+    private static Simulation simulation;
+
+    @BeforeClass
+    public static void load(){
+        //AI logging would otherwise drown out the test output
+        Log.setLogger(new NoopLogHandler());
+        simulation = Simulation.load(new FileHandle("assets/maps/eurorails.txt"), new FileHandle("assets/maps/deck.txt"));
+    }
+
+    @Test
+    public void incrementalPlanMatchesFullReplan(){
+        for(long seed : seeds){
+            Simulation sim = new Simulation(simulation.world, simulation.deck);
+            State state = sim.createGame(seed, Array.with(CurrentAI::new, CurrentAI::new));
+            sim.maxTurns = 4;
+            sim.play(seed, state);
+            state.publishSnapshot();
+
+            Player player = state.player();
+            CurrentAI ai = new CurrentAI(player, state);
+            ai.incremental = true;
+            ai.updatePlan();
+
+            //let the game go on, so that the player moves, sells and draws new cards since the costs were kept
+            sim.maxTurns = 10;
+            sim.play(seed, state);
+            state.publishSnapshot();
+
+            Candidate a = ai.findBestPlanAfterSale(), b = new CurrentAI(player, state).findBestPlanInOrder();
+            String game = "seed " + seed;
+
+            if(b == null){
+                assertNull(game, a);
+            }else{
+                assertNotNull(game, a);
+                assertEquals(game, b.index, a.index);
+                assertEquals(game, b.cost, a.cost, 0f);
+            }
+        }
+    }
+}
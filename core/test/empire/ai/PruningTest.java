@@ -0,0 +1,61 @@
+package empire.ai;
+
+import empire.ai.CurrentAI.Candidate;
+import empire.game.*;
+import io.anuke.arc.collection.Array;
+import io.anuke.arc.files.FileHandle;
+import io.anuke.arc.util.Log;
+import io.anuke.arc.util.Log.NoopLogHandler;
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+/** Checks that branch and bound pruning never changes the plan chosen, in games played by AIs up to several turns.*/
+public class PruningTest{
+    private static final long[] seeds = {1, 2, 3};
+    private static final int[] turns = {2, 8, 20};
+
+    private static Simulation simulation;
+
+    @BeforeClass
+    public static void load(){
+        //AI logging would otherwise drown out the test output
+        Log.setLogger(new NoopLogHandler());
+        simulation = Simulation.load(new FileHandle("assets/maps/eurorails.txt"), new FileHandle("assets/maps/deck.txt"));
+    }
+
+    @Test
+    public void prunedPlanMatchesUnpruned(){
+        for(long seed : seeds){
+            for(int turn : turns){
+                State state = midGame(seed, turn);
+                Player player = state.player();
+
+                CurrentAI pruned = new CurrentAI(player, state), unpruned = new CurrentAI(player, state);
+                unpruned.prune = false;
+                Candidate a = pruned.findBestPlanInOrder(), b = unpruned.findBestPlanInOrder();
+                String game = "seed " + seed + ", turn " + turn;
+
+                if(b == null){
+                    assertNull(game, a);
+                }else{
+                    assertNotNull(game, a);
+                    assertEquals(game, b.index, a.index);
+                    assertEquals(game, b.cost, a.cost, 0f);
+                }
+            }
+        }
+    }
+
+    /** Plays a seeded game between two default AIs until the start of a turn.*/
+    private State midGame(long seed, int turn){
+        Simulation sim = new Simulation(simulation.world, simulation.deck);
+        sim.maxTurns = turn - 1;
+
+        State state = sim.createGame(seed, Array.with(CurrentAI::new, CurrentAI::new));
+        sim.play(seed, state);
+        //planning reads the latest published snapshot, which is from before the last actions of the game
+        state.publishSnapshot();
+        return state;
+    }
+}
@@ -0,0 +1,255 @@
+package empire.gfx;
+
+import empire.game.Actions.*;
+import empire.game.*;
+import empire.game.World.Tile;
+import empire.io.*;
+import empire.net.Net;
+import io.anuke.arc.collection.*;
+import io.anuke.arc.files.FileHandle;
+import io.anuke.arc.function.Consumer;
+import io.anuke.arc.graphics.Color;
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+/** Joins and rejoins clients through an in-memory connection, checking which player each client owns
+ * and which of their actions the server lets through.*/
+public class ActionRelayTest{
+    private static World world;
+    private static Array<Card> deck;
+
+    private Hub hub;
+    private ActionRelay server;
+    private State serverState;
+
+    @BeforeClass
+    public static void load(){
+        world = MapIO.loadTiles(new FileHandle("assets/maps/eurorails.txt"));
+        deck = CardIO.loadCards(world, new FileHandle("assets/maps/deck.txt"));
+    }
+
+    @Before
+    public void host(){
+        hub = new Hub();
+        State state = serverState = state();
+        state.cards.addAll(deck);
+
+        LocalNet net = new LocalNet(hub);
+        server = new ActionRelay(net, state);
+        net.setListener(server);
+        net.host();
+    }
+
+    @Test
+    public void joiningClientOwnsNewPlayer(){
+        Client a = join("a");
+        Client b = join("b");
+
+        assertLocal(a, "a");
+        assertLocal(b, "b");
+    }
+
+    @Test
+    public void rejoiningClientOwnsItsPlayerAfterAnotherJoined(){
+        Client a = join("a");
+        a.net.close();
+        hub.settle();
+
+        //joins while the first client is away, so it's the first player added in what the first client catches up on
+        Client b = join("b");
+        connect(a, "a");
+
+        assertEquals(2, a.state.players.size);
+        assertLocal(a, "a");
+        assertLocal(b, "b");
+    }
+
+    @Test
+    public void actionsAfterPortMoveAreRejected(){
+        Client a = join("a");
+        Client b = join("b");
+
+        Tile from = port();
+        a.relay.handle(new ChooseStart(){{ location = from; }});
+        hub.settle();
+
+        //crossing to the other port ends the turn, so the end turn after it isn't the sender's anymore
+        int turn = serverState.turn;
+        a.relay.handle(new Move(){{ to = from.port.to; }});
+        a.relay.handle(new EndTurn());
+        hub.settle();
+
+        for(State state : new State[]{serverState, a.state, b.state}){
+            assertEquals("b", state.player().name);
+            assertEquals(turn, state.turn);
+            assertEquals(from.port.to, state.players.first().position);
+        }
+    }
+
+    private Client join(String name){
+        LocalNet net = new LocalNet(hub);
+        State state = state();
+        Client client = new Client(net, state, new ActionRelay(net, state));
+        net.setListener(client.relay);
+        hub.relays.add(client.relay);
+        connect(client, name);
+        return client;
+    }
+
+    private void connect(Client client, String name){
+        client.relay.beginConnect(new Connect(){{
+            this.name = name;
+            color = new Color(1f, 1f, 1f, 1f);
+        }}, "localhost", () -> {}, e -> fail(e.getMessage()));
+        hub.settle();
+    }
+
+    private State state(){
+        State state = new State();
+        state.world = world;
+        state.cards = new Array<>();
+        return state;
+    }
+
+    /** @return the start of the first port link in the world.*/
+    private Tile port(){
+        for(int x = 0; x < world.width; x++){
+            for(int y = 0; y < world.height; y++){
+                Tile tile = world.tile(x, y);
+                if(tile.port != null && tile.port.from == tile){
+                    return tile;
+                }
+            }
+        }
+        throw new IllegalStateException("No ports in the world.");
+    }
+
+    /** Checks that a client owns exactly one player, with the given name.*/
+    private void assertLocal(Client client, String name){
+        Array<Player> local = client.state.players.select(p -> p.local);
+        assertEquals(1, local.size);
+        assertEquals(name, local.first().name);
+    }
+
+    private static class Client{
+        final LocalNet net;
+        final State state;
+        final ActionRelay relay;
+
+        Client(LocalNet net, State state, ActionRelay relay){
+            this.net = net;
+            this.state = state;
+            this.relay = relay;
+        }
+    }
+
+    /** Carries messages between in-memory connections. Nothing is delivered until {@link #settle()} is called.*/
+    private class Hub{
+        final Queue<Runnable> pending = new Queue<>();
+        final IntMap<LocalNet> clients = new IntMap<>();
+        final Array<ActionRelay> relays = new Array<>();
+        LocalNet server;
+        int lastID;
+
+        /** Sends everything the relays have queued and delivers it, until nothing is left.*/
+        void settle(){
+            do{
+                ActionRelayTest.this.server.flush();
+                relays.each(ActionRelay::flush);
+
+                while(!pending.isEmpty()){
+                    pending.removeFirst().run();
+                }
+            }while(!pending.isEmpty());
+        }
+    }
+
+    /** A connection that lives in the same thread, as either the server or one of its clients.*/
+    private static class LocalNet extends Net{
+        final Hub hub;
+        boolean hosting, connected;
+        int id = -1;
+
+        LocalNet(Hub hub){
+            this.hub = hub;
+            setPoster(Runnable::run);
+        }
+
+        @Override
+        public boolean connecting(){
+            return false;
+        }
+
+        @Override
+        public boolean server(){
+            return hosting;
+        }
+
+        @Override
+        public boolean client(){
+            return connected;
+        }
+
+        @Override
+        public void connect(String host, Runnable success, Consumer<Throwable> error){
+            connected = true;
+            id = hub.lastID ++;
+            hub.clients.put(id, this);
+            success.run();
+        }
+
+        @Override
+        public void host(int port){
+            hosting = true;
+            hub.server = this;
+        }
+
+        @Override
+        public void send(int connection, String text){
+            LocalNet client = hub.clients.get(connection);
+            hub.pending.addLast(() -> client.listener.message(text));
+        }
+
+        @Override
+        public void send(int connection, byte[] bytes){
+            LocalNet client = hub.clients.get(connection);
+            hub.pending.addLast(() -> client.listener.message(bytes));
+        }
+
+        @Override
+        public void send(String text){
+            if(hosting){
+                for(IntMap.Entry<LocalNet> entry : hub.clients.entries()){
+                    send(entry.key, text);
+                }
+            }else{
+                int from = id;
+                hub.pending.addLast(() -> hub.server.listener.messsage(from, text));
+            }
+        }
+
+        @Override
+        public void send(byte[] bytes){
+            if(hosting){
+                for(IntMap.Entry<LocalNet> entry : hub.clients.entries()){
+                    send(entry.key, bytes);
+                }
+            }else{
+                int from = id;
+                hub.pending.addLast(() -> hub.server.listener.messsage(from, bytes));
+            }
+        }
+
+        @Override
+        public void close(){
+            if(connected){
+                connected = false;
+                int from = id;
+                hub.clients.remove(from);
+                hub.pending.addLast(() -> hub.server.listener.disconnected(from));
+            }
+            hosting = false;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package empire;
+
+import empire.ai.*;
+import empire.ai.Simulation.Result;
+import empire.ai.Tournament.Entry;
+import io.anuke.arc.collection.Array;
+import io.anuke.arc.files.FileHandle;
+import io.anuke.arc.util.*;
+
+import java.lang.reflect.Field;
+
+/** Plays AI-only games without a window. Must be run from the assets directory.
+ * Arguments: -games [amount] -seed [first seed] -players [amount] -turns [max turns] -threads [amount]
+ * -ai [field=value,field=value] (repeatable; compares CurrentAI configurations in a tournament)
+ * -checkpruning [directory of saved games] (checks that pruned and unpruned planning choose the same plans)*/
+public class HeadlessLauncher{
+	public static void main(String[] arg){
+		Array<String> args = Array.with(arg);
+		int games = intArg(args, "-games", 1);
+		long seed = intArg(args, "-seed", 0);
+
+		Simulation sim = Simulation.load(new FileHandle("maps/eurorails.txt"), new FileHandle("maps/deck.txt"));
+		sim.players = intArg(args, "-players", 2);
+		sim.maxTurns = intArg(args, "-turns", sim.maxTurns);
+
+		Array<String> configs = new Array<>();
+		for(int i = 0; i < args.size - 1; i++){
+			if(args.get(i).equals("-ai")){
+				configs.add(args.get(i + 1));
+			}
+		}
+
+		long startTime = Time.millis();
+
+		int checkIndex = args.indexOf("-checkpruning", false);
+		if(checkIndex != -1 && checkIndex + 1 < args.size){
+			int mismatches = sim.checkPruning(new FileHandle(args.get(checkIndex + 1)));
+			Log.info("Checked pruning in {0}ms: {1} mismatch(es).", Time.timeSinceMillis(startTime), mismatches);
+			System.exit(mismatches == 0 ? 0 : 1);
+		}
+
+		if(!configs.isEmpty()){
+			//games already run in parallel, so each AI plans on its own thread
+			CurrentAI.planThreads = 1;
+
+			Tournament tournament = new Tournament(sim);
+			tournament.threads = intArg(args, "-threads", tournament.threads);
+			for(String config : configs){
+				tournament.add(config, (player, state) -> configure(new CurrentAI(player, state), config));
+			}
+
+			for(Entry entry : tournament.run(seed, games)){
+				Log.info("{0}", entry);
+			}
+			Log.info("Played {0} games in {1}ms.", games, Time.timeSinceMillis(startTime));
+		}else{
+			int won = 0, totalTurns = 0;
+
+			for(int i = 0; i < games; i++){
+				Result result = sim.play(seed + i);
+				Log.info("Game {0}: {1}", i, result);
+
+				if(result.winner != -1){
+					won ++;
+					totalTurns += result.turns;
+				}
+			}
+
+			Log.info("Played {0} games in {1}ms. {2} finished, averaging {3} turns.",
+					games, Time.timeSinceMillis(startTime), won, won == 0 ? 0 : (float)totalTurns / won);
+		}
+
+		System.exit(0);
+	}
+
+	/** Sets public fields of an AI from a list of field=value pairs.*/
+	static CurrentAI configure(CurrentAI ai, String config){
+		for(String pair : config.split(",")){
+			if(pair.isEmpty()) continue;
+
+			String[] split = pair.split("=");
+			try{
+				Field field = CurrentAI.class.getField(split[0]);
+				Class<?> type = field.getType();
+				field.set(ai,
+					type == int.class ? (Object)Integer.parseInt(split[1]) :
+					type == float.class ? (Object)Float.parseFloat(split[1]) :
+					type == boolean.class ? (Object)Boolean.parseBoolean(split[1]) :
+					split[1]);
+			}catch(ReflectiveOperationException e){
+				throw new IllegalArgumentException("Invalid AI setting: " + pair, e);
+			}
+		}
+		return ai;
+	}
+
+	static int intArg(Array<String> args, String name, int def){
+		int index = args.indexOf(name, false);
+		return index == -1 || index + 1 >= args.size ? def : Integer.parseInt(args.get(index + 1));
+	}
+}
@@ -0,0 +1,39 @@
+package empire;
+
+import empire.game.*;
+import empire.io.*;
+import empire.net.*;
+import io.anuke.arc.collection.Array;
+import io.anuke.arc.files.FileHandle;
+import io.anuke.arc.util.Log;
+
+/** Hosts games without a window or a local player. Must be run from the assets directory.
+ * Arguments: -rooms [amount] -port [port of the first room; each other room uses the next one]*/
+public class ServerLauncher{
+	public static void main(String[] arg){
+		Array<String> args = Array.with(arg);
+		int roomCount = HeadlessLauncher.intArg(args, "-rooms", 1);
+		int port = HeadlessLauncher.intArg(args, "-port", Net.port);
+
+		//the map and deck are never modified, so every room shares them
+		World world = MapIO.loadTiles(new FileHandle("maps/eurorails.txt"));
+		Array<Card> deck = CardIO.loadCards(world, new FileHandle("maps/deck.txt"));
+
+		Array<ServerRoom> rooms = new Array<>();
+		for(int i = 0; i < roomCount; i++){
+			ServerRoom room = new ServerRoom("room " + (i + 1), port + i, world, deck);
+			rooms.add(room);
+			room.start();
+		}
+
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> rooms.each(ServerRoom::stop)));
+
+		try{
+			for(ServerRoom room : rooms){
+				room.join();
+			}
+		}catch(InterruptedException e){
+			Log.err("Interrupted while hosting.");
+		}
+	}
+}